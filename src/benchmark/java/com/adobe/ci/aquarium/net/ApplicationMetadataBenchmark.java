@@ -0,0 +1,56 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import net.sf.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Metadata of the Application built for each launched agent with the cloud additional metadata
+ */
+@JmhBenchmark
+public class ApplicationMetadataBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ClientState {
+        AquariumClient client;
+        String metadata;
+
+        @Setup
+        public void setup() {
+            // The metadata is built locally, so the client is not connecting anywhere
+            client = AquariumClient.forStandIn("http://127.0.0.1:1", "admin", "admin");
+            StringBuilder sb = new StringBuilder();
+            for( int i = 0; i < 20; i++ ) {
+                sb.append("KEY_").append(i).append("=value ").append(i).append('\n');
+            }
+            metadata = sb.toString();
+        }
+
+        @TearDown
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public JSONObject buildMetadata(ClientState state) {
+        return state.client.buildMetadata("https://jenkins.example.com/", "https://jenkins.example.com/#aquarium",
+                "fish-benchmark", "0123456789abcdef0123456789abcdef", state.metadata);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jenkins labels of the new agent: the cloud matcher remembering the result per Aquarium label
+ * against applying all the mappings each time and against the fresh matcher after the config change,
+ * by the amount of the mappings and the alternatives in each pattern
+ */
+@JmhBenchmark
+public class LabelMappingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class MappingsState {
+        @Param({"10", "50", "200"})
+        int mappingsCount;
+
+        // Amount of the alternative label names in each pattern
+        @Param({"1", "8"})
+        int alternatives;
+
+        List<LabelMapping> mappings;
+        LabelMapping.Matcher matcher;
+        // Matches only the last mapping, so all the patterns are applied
+        String label;
+
+        @Setup
+        public void setup() {
+            mappings = new ArrayList<>();
+            for( int i = 0; i < mappingsCount; i++ ) {
+                StringBuilder names = new StringBuilder("label-" + i);
+                for( int a = 1; a < alternatives; a++ ) {
+                    names.append("|alias-").append(a).append("-label-").append(i);
+                }
+                mappings.add(new LabelMapping("^(" + names + ")(-.*)?$", "jenkins-" + i + " common"));
+            }
+            matcher = new LabelMapping.Matcher(mappings);
+            label = "label-" + (mappingsCount - 1) + "-xcode";
+        }
+    }
+
+    @Benchmark
+    public String matcher(MappingsState state) {
+        return state.matcher.getLabels(state.label);
+    }
+
+    @Benchmark
+    public String matcherMiss(MappingsState state) {
+        return new LabelMapping.Matcher(state.mappings).getLabels(state.label);
+    }
+
+    @Benchmark
+    public String allMappings(MappingsState state) {
+        return LabelMapping.getLabels(state.mappings, state.label);
+    }
+
+    @Benchmark
+    public LabelMapping reuse(MappingsState state) {
+        return state.matcher.getReuse(state.label);
+    }
+}
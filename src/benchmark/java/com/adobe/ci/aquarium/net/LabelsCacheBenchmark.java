@@ -0,0 +1,97 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Label checks done by the cloud for each queue item: canProvision and resolve of the cached labels
+ * snapshot against the plain label expression match and against the fresh snapshot after the labels
+ * update, by the amount of the cluster labels and the size of the requested expression
+ */
+@JmhBenchmark
+public class LabelsCacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class JenkinsState extends JmhBenchmarkState {
+        // Amount of the labels served by the cluster
+        @Param({"10", "100", "1000"})
+        int labelsCount;
+
+        // Amount of the atoms in the expression, && and || are alternating by the tree level
+        @Param({"1", "4", "16"})
+        int atoms;
+
+        Set<LabelAtom> labels;
+        AquariumCloud.LabelsCache cache;
+        Label expression;
+
+        @Override
+        public void setup() {
+            labels = new HashSet<>();
+            for( int i = 0; i < labelsCount; i++ ) {
+                labels.add(LabelAtom.get("label-" + i));
+            }
+            cache = new AquariumCloud.LabelsCache(labels, Long.MAX_VALUE);
+            // The atoms are taken from the end, so resolve is walking through the most of the labels
+            expression = Label.parseExpression(expression(labelsCount - atoms, atoms, true));
+        }
+
+        /**
+         * Builds the balanced expression tree of the atoms, the operator is switched on each level
+         */
+        private String expression(int from, int count, boolean and) {
+            if( count == 1 )
+                return "label-" + Math.max(0, from);
+            int half = count / 2;
+            return "(" + expression(from, half, !and) + (and ? " && " : " || ")
+                    + expression(from + half, count - half, !and) + ")";
+        }
+    }
+
+    @Benchmark
+    public boolean canProvision(JenkinsState state) {
+        return state.cache.canProvision(state.expression);
+    }
+
+    @Benchmark
+    public String resolve(JenkinsState state) {
+        return state.cache.resolve(state.expression);
+    }
+
+    @Benchmark
+    public boolean canProvisionMiss(JenkinsState state) {
+        // The labels were updated, so the first check of the expression is computed on the new snapshot
+        return new AquariumCloud.LabelsCache(state.labels, Long.MAX_VALUE).canProvision(state.expression);
+    }
+
+    @Benchmark
+    public String resolveMiss(JenkinsState state) {
+        return new AquariumCloud.LabelsCache(state.labels, Long.MAX_VALUE).resolve(state.expression);
+    }
+
+    @Benchmark
+    public boolean matchExpressionUncached(JenkinsState state) {
+        return state.expression.matches(state.labels);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.JSON;
+import com.adobe.ci.aquarium.fish.client.model.Application;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationState;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import com.adobe.ci.aquarium.fish.client.model.Label;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * JSON round-trip of the Fish API models requested most often: the Application create request, the
+ * Application state polled during the launch and the Label received with all its definitions
+ */
+@JmhBenchmark
+public class ModelJsonBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ModelState {
+        // Amount of the definitions in the Label, each one is describing the resource for the driver
+        @Param({"1", "16"})
+        int definitions;
+
+        JSON json;
+        String application;
+        String state;
+        String label;
+
+        @Setup
+        public void setup() {
+            json = new JSON();
+
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put("JENKINS_URL", "https://jenkins.example.com/");
+            metadata.put("JENKINS_AGENT_NAME", "fish-benchmark");
+            metadata.put("JENKINS_AGENT_SECRET", "0123456789abcdef0123456789abcdef");
+            Application app = new Application();
+            app.setUID(UUID.randomUUID());
+            app.setLabelUID(UUID.randomUUID());
+            app.setMetadata(metadata);
+            application = json.serialize(app);
+
+            ApplicationState st = new ApplicationState();
+            st.setUID(UUID.randomUUID());
+            st.setApplicationUID(app.getUID());
+            st.setStatus(ApplicationStatus.ELECTED);
+            st.setDescription("Elected node");
+            state = json.serialize(st);
+
+            // Built as plain JSON to look like the cluster response with the driver options
+            JSONArray defs = new JSONArray();
+            for( int i = 0; i < definitions; i++ ) {
+                JSONObject options = new JSONObject();
+                options.put("image", "macos-1015-ci-xcode122-" + i);
+                options.put("instance_type", "mac1.metal");
+                options.put("security_groups", JSONArray.fromObject(new String[]{"sg-0123456789", "sg-9876543210"}));
+                JSONObject userdata = new JSONObject();
+                for( int u = 0; u < 20; u++ ) {
+                    userdata.put("ENV_" + u, "value of the environment variable " + u);
+                }
+                options.put("userdata", userdata);
+
+                JSONObject disks = new JSONObject();
+                disks.put("ws", JSONObject.fromObject("{\"type\": \"hfs+\", \"size\": 100}"));
+                JSONObject resources = new JSONObject();
+                resources.put("cpu", 12);
+                resources.put("ram", 32);
+                resources.put("disks", disks);
+                resources.put("network", "");
+
+                JSONObject def = new JSONObject();
+                def.put("driver", "aws");
+                def.put("options", options);
+                def.put("resources", resources);
+                defs.add(def);
+            }
+            JSONObject lbl = new JSONObject();
+            lbl.put("UID", UUID.randomUUID().toString());
+            lbl.put("name", "macos-1015-ci-xcode122");
+            lbl.put("version", 42);
+            lbl.put("definitions", defs);
+            lbl.put("metadata", JSONObject.fromObject("{\"JENKINS_AGENT_WORKSPACE\": \"/Volumes/ws\"}"));
+            label = lbl.toString();
+        }
+    }
+
+    @Benchmark
+    public String applicationRoundTrip(ModelState s) {
+        Application app = s.json.deserialize(s.application, Application.class);
+        return s.json.serialize(app);
+    }
+
+    @Benchmark
+    public ApplicationState stateParse(ModelState s) {
+        return s.json.deserialize(s.state, ApplicationState.class);
+    }
+
+    @Benchmark
+    public Label labelParse(ModelState s) {
+        return s.json.deserialize(s.label, Label.class);
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * OkHttp interceptor of the Fish API client, records the requests rate, latency, response codes and
+ * payload sizes per API operation. The operation name is set by the {@link AquariumClient} for the
+ * current thread, the generated client executes the requests synchronously so it's the same thread.
+ */
+public class ApiMetricsInterceptor implements Interceptor {
+
+    private static final ThreadLocal<String> OPERATION = new ThreadLocal<>();
+
+    private static final Pattern UUID_SEGMENT = Pattern.compile(
+            "/[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    // Name of the cloud to separate the metrics of the clients using the different clusters, null if the
+    // requests are not exported to the plugin metrics (like the test connection of the cloud config form)
+    @CheckForNull
+    private final String cloud;
+
+    private final ConcurrentHashMap<String, OperationStats> stats = new ConcurrentHashMap<>();
+
+    ApiMetricsInterceptor(@CheckForNull String cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Stats of the API operation for the cloud page
+     */
+    public static class OperationStats {
+        private final String operation;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder latency = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+
+        OperationStats(String operation) {
+            this.operation = operation;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public long getAverageLatency() {
+            long count = requests.sum();
+            return count > 0 ? latency.sum() / count : 0;
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+    }
+
+    /**
+     * Sets the operation name for the requests executed by the current thread
+     * @return previous operation to restore after the call
+     */
+    static String setOperation(String operation) {
+        String prev = OPERATION.get();
+        if( operation == null ) {
+            OPERATION.remove();
+        } else {
+            OPERATION.set(operation);
+        }
+        return prev;
+    }
+
+    private OperationStats getStats(String operation) {
+        return stats.computeIfAbsent(operation, OperationStats::new);
+    }
+
+    /**
+     * Returns the stats sorted by operation name
+     */
+    public List<OperationStats> getStats() {
+        List<OperationStats> out = new ArrayList<>(stats.values());
+        out.sort(Comparator.comparing(OperationStats::getOperation));
+        return out;
+    }
+
+    /**
+     * Counts the request repeated on another node by the client
+     */
+    void retry(String operation) {
+        getStats(operation).retries.increment();
+        if( cloud != null )
+            AquariumMetrics.API_RETRIES.add(1, cloud, operation);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String operation = OPERATION.get();
+        if( operation == null ) {
+            operation = request.method() + " " + UUID_SEGMENT.matcher(request.url().encodedPath()).replaceAll("/{uid}");
+        }
+        OperationStats op = getStats(operation);
+
+        long bytes_out = request.body() != null ? request.body().contentLength() : 0;
+        if( bytes_out > 0 ) {
+            op.bytesOut.add(bytes_out);
+            if( cloud != null )
+                AquariumMetrics.API_BYTES_OUT.add(bytes_out, cloud, operation);
+        }
+
+        long start = System.currentTimeMillis();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch( IOException e ) {
+            record(op, start, "io_error");
+            throw e;
+        }
+        record(op, start, String.valueOf(response.code()));
+        if( !response.isSuccessful() ) {
+            op.errors.increment();
+        }
+
+        ResponseBody body = response.body();
+        if( body == null )
+            return response;
+
+        // The body is read by the generated client later, so counting the bytes while it's consumed
+        final String op_name = operation;
+        ForwardingSource counting = new ForwardingSource(body.source()) {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if( read > 0 ) {
+                    op.bytesIn.add(read);
+                    if( cloud != null )
+                        AquariumMetrics.API_BYTES_IN.add(read, cloud, op_name);
+                }
+                return read;
+            }
+        };
+        return response.newBuilder()
+                .body(ResponseBody.create(Okio.buffer(counting), body.contentType(), body.contentLength()))
+                .build();
+    }
+
+    private void record(OperationStats op, long start, String code) {
+        long duration = System.currentTimeMillis() - start;
+        op.requests.increment();
+        op.latency.add(duration);
+        if( code.equals("io_error") ) {
+            op.errors.increment();
+        }
+        if( cloud != null ) {
+            AquariumMetrics.API_REQUESTS.add(1, cloud, op.operation, code);
+            AquariumMetrics.API_LATENCY.observe(duration, cloud, op.operation);
+        }
+    }
+}
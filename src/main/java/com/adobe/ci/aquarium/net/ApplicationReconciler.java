@@ -0,0 +1,185 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.ApiException;
+import com.adobe.ci.aquarium.fish.client.model.Application;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationState;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically compares the Applications of this controller in the Aquarium cluster with the cloud
+ * agents: deallocates the Applications without agent (leaked by restart in the middle of launch or
+ * failed termination) and removes the agents which Application is not active anymore.
+ */
+public class ApplicationReconciler {
+
+    private static final Logger LOG = Logger.getLogger(ApplicationReconciler.class.getName());
+
+    // Time the orphan need to stay orphan before action, to not race with the launch & termination
+    private static final long GRACE_PERIOD = Long
+            .getLong(ApplicationReconciler.class.getName() + ".gracePeriod", 300000L);
+
+    // Limits the amount of the state requests per run to spread the check of the old Applications
+    private static final int MAX_CHECKS = Integer
+            .getInteger(ApplicationReconciler.class.getName() + ".maxChecks", 100);
+
+    private static final Set<ApplicationStatus> ACTIVE = EnumSet.of(
+            ApplicationStatus.NEW, ApplicationStatus.ELECTED, ApplicationStatus.ALLOCATED);
+
+    private final AquariumCloud cloud;
+
+    // Time when the Application or agent was seen orphaned first time
+    private final Map<UUID, Long> orphanApps = new HashMap<>();
+    private final Map<String, Long> deadAgents = new HashMap<>();
+    // Applications already processed, no need to check them again
+    private final Set<UUID> handled = new HashSet<>();
+
+    private int deallocatedCount;
+    private int removedCount;
+
+    ApplicationReconciler(AquariumCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    public synchronized int getDeallocatedCount() {
+        return deallocatedCount;
+    }
+
+    public synchronized int getRemovedCount() {
+        return removedCount;
+    }
+
+    public synchronized void reconcile() throws Exception {
+        AquariumClient client = cloud.getClient();
+        long now = System.currentTimeMillis();
+
+        // The agents of all the clouds are used, the Application could be moved between the clouds
+        // with the same cluster by the config change and the agent names are unique in Jenkins
+        Set<UUID> agent_apps = new HashSet<>();
+        Set<String> agent_names = new HashSet<>();
+        for( Node node : Jenkins.get().getNodes() ) {
+            if( !(node instanceof AquariumSlave) )
+                continue;
+            AquariumSlave agent = (AquariumSlave) node;
+            agent_names.add(agent.getNodeName());
+            if( agent.getApplicationUID() != null ) {
+                agent_apps.add(agent.getApplicationUID());
+            }
+        }
+
+        // Applications without agent
+        String owner = cloud.getOwnerMarker();
+        Set<UUID> listed = new HashSet<>();
+        int checks = 0;
+        for( Application app : client.applicationFindOwned(owner) ) {
+            if( app.getUID() == null )
+                continue;
+            listed.add(app.getUID());
+            if( handled.contains(app.getUID()) || !isOwned(app, owner) )
+                continue;
+            String agent_name = getMetadata(app).optString("JENKINS_AGENT_NAME");
+            // The agent in the middle of launch could not have the Application UID set yet
+            if( agent_apps.contains(app.getUID()) || agent_names.contains(agent_name) ) {
+                orphanApps.remove(app.getUID());
+                continue;
+            }
+            long first_seen = orphanApps.computeIfAbsent(app.getUID(), k -> now);
+            if( first_seen + GRACE_PERIOD > now || checks++ >= MAX_CHECKS )
+                continue;
+
+            ApplicationState state = client.applicationStateGet(app.getUID());
+            orphanApps.remove(app.getUID());
+            handled.add(app.getUID());
+            if( ACTIVE.contains(state.getStatus()) ) {
+                LOG.log(Level.WARNING, "Found orphaned Application " + app.getUID() + " of agent " + agent_name +
+                        " in status " + state.getStatus() + ", deallocating");
+                DeallocationQueue.get().add(cloud.name, app.getUID(), agent_name);
+                deallocatedCount++;
+            }
+        }
+        orphanApps.keySet().retainAll(listed);
+        handled.retainAll(listed);
+
+        // Agents which Application is gone
+        Set<String> dead_seen = new HashSet<>();
+        for( AquariumSlave agent : cloud.getAgents() ) {
+            if( !isDeadCandidate(agent) ) {
+                deadAgents.remove(agent.getNodeName());
+                continue;
+            }
+            dead_seen.add(agent.getNodeName());
+            long first_seen = deadAgents.computeIfAbsent(agent.getNodeName(), k -> now);
+            if( first_seen + GRACE_PERIOD > now )
+                continue;
+
+            try {
+                ApplicationState state = client.applicationStateGet(agent.getApplicationUID());
+                if( ACTIVE.contains(state.getStatus()) )
+                    continue;
+                LOG.log(Level.WARNING, "Application " + agent.getApplicationUID() + " of offline agent " +
+                        agent.getNodeName() + " is " + state.getStatus() + ", removing the agent");
+            } catch( ApiException e ) {
+                if( e.getCode() != 404 )
+                    throw e;
+                LOG.log(Level.WARNING, "Application " + agent.getApplicationUID() + " of offline agent " +
+                        agent.getNodeName() + " is not found, removing the agent");
+            }
+            deadAgents.remove(agent.getNodeName());
+            agent.terminate();
+            removedCount++;
+        }
+        deadAgents.keySet().retainAll(dead_seen);
+    }
+
+    /**
+     * Checks the Application was created by this cloud
+     */
+    private static boolean isOwned(Application app, String owner) {
+        JSONObject metadata = getMetadata(app);
+        if( !metadata.optString("JENKINS_AGENT_NAME").startsWith(AquariumSlave.DEFAULT_AGENT_PREFIX + "-") )
+            return false;
+        return owner.equals(metadata.optString(AquariumClient.OWNER_METADATA));
+    }
+
+    private static JSONObject getMetadata(Application app) {
+        try {
+            return JSONObject.fromObject(app.getMetadata());
+        } catch( Exception e ) {
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * The agent was launched but now offline and not reconnecting
+     */
+    private static boolean isDeadCandidate(AquariumSlave agent) {
+        if( agent.getApplicationUID() == null )
+            return false;
+        Computer computer = agent.toComputer();
+        if( computer == null || computer.isOnline() || computer.isConnecting() )
+            return false;
+        ComputerLauncher launcher = computer instanceof SlaveComputer ? ((SlaveComputer) computer).getLauncher() : null;
+        return !(launcher instanceof AquariumLauncher) || !((AquariumLauncher) launcher).isLaunching();
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.ApiException;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationState;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamedThreadFactory;
+
+import javax.annotation.CheckForNull;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cloud-wide watcher of the Application states. Instead of each launch polling the cluster on its own
+ * thread, one periodic task requests the state of every watched Application once per tick and
+ * completes the waiting futures.
+ */
+public class ApplicationStatePoller {
+
+    private static final Logger LOG = Logger.getLogger(ApplicationStatePoller.class.getName());
+
+    // Resolution of the poller, the local conditions are checked each tick
+    private static final long TICK_INTERVAL = Long
+            .getLong(ApplicationStatePoller.class.getName() + ".tickInterval", 500L);
+
+    // Each Application is requested often at first and then less frequently while it's waiting. The first
+    // interval grows with the amount of the watched Applications to keep the request rate of the cloud
+    // around the target, up to the max initial interval
+    private static final long POLL_INITIAL = Long
+            .getLong(ApplicationStatePoller.class.getName() + ".initialInterval", 1000L);
+    private static final long POLL_INITIAL_MAX = Long
+            .getLong(ApplicationStatePoller.class.getName() + ".initialMaxInterval", 5000L);
+    private static final int TARGET_RATE = Math.max(1, Integer
+            .getInteger(ApplicationStatePoller.class.getName() + ".targetRate", 10));
+    private static final long POLL_MAX = Long
+            .getLong(ApplicationStatePoller.class.getName() + ".maxInterval", 10000L);
+    private static final double POLL_FACTOR = Double
+            .parseDouble(System.getProperty(ApplicationStatePoller.class.getName() + ".intervalFactor", "1.5"));
+
+    // Max delay between the requests in case the cluster responds with errors
+    private static final long ERROR_MAX = Long
+            .getLong(ApplicationStatePoller.class.getName() + ".errorMaxInterval", 60000L);
+
+    // Max amount of the state requests of the cloud per tick, the rest of the due Applications wait
+    private static final int MAX_REQUESTS = Math.max(1, Integer
+            .getInteger(ApplicationStatePoller.class.getName() + ".maxRequestsPerTick", 20));
+
+    // The state requests of the tick are executed in parallel by the pool shared between the clouds
+    private static final ExecutorService REQUESTS = Executors.newFixedThreadPool(
+            Integer.getInteger(ApplicationStatePoller.class.getName() + ".workers", 4),
+            new NamedThreadFactory(new DaemonThreadFactory(), "Aquarium state poller"));
+
+    private final AquariumCloud cloud;
+    private final Queue<Watch> watches = new ConcurrentLinkedQueue<>();
+
+    private ScheduledFuture<?> task;
+
+    private static class Watch {
+        final UUID app_uid;
+        final Set<ApplicationStatus> pending;
+        @CheckForNull
+        final BooleanSupplier done;
+        final long deadline;
+        final CompletableFuture<ApplicationState> future = new CompletableFuture<>();
+
+        final Backoff poll;
+        final Backoff errors;
+        volatile long next_poll;
+
+        Watch(UUID app_uid, Set<ApplicationStatus> pending, @CheckForNull BooleanSupplier done, long deadline,
+              long initial) {
+            this.app_uid = app_uid;
+            this.pending = pending;
+            this.done = done;
+            this.deadline = deadline;
+            this.poll = new Backoff(initial, POLL_MAX, POLL_FACTOR);
+            this.errors = new Backoff(initial, ERROR_MAX, 2.0);
+            this.next_poll = System.currentTimeMillis() + poll.next();
+        }
+    }
+
+    ApplicationStatePoller(AquariumCloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Waits until the Application leaves the pending statuses
+     *
+     * @param app_uid Application to watch
+     * @param pending statuses to wait through, the future completes with the first state not in the list
+     * @param done optional local condition checked each tick, completes the future with null when true
+     * @param timeout time in ms to wait, the future completes with {@link TimeoutException} after it, 0 - forever
+     */
+    public CompletableFuture<ApplicationState> waitFor(UUID app_uid, Set<ApplicationStatus> pending,
+                                                       @CheckForNull BooleanSupplier done, long timeout) {
+        Watch watch = new Watch(app_uid, EnumSet.copyOf(pending), done,
+                timeout > 0 ? System.currentTimeMillis() + timeout : 0, initialInterval(watches.size() + 1));
+        synchronized( this ) {
+            watches.add(watch);
+            if( task == null ) {
+                task = AquariumClient.BACKGROUND.scheduleWithFixedDelay(this::tick, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        return watch.future;
+    }
+
+    /**
+     * First poll interval for the amount of the watched Applications
+     */
+    static long initialInterval(int watched) {
+        return Math.max(POLL_INITIAL, Math.min(POLL_INITIAL_MAX, watched * 1000L / TARGET_RATE));
+    }
+
+    /**
+     * Amount of the currently watched Applications
+     */
+    public int getWatchedCount() {
+        return watches.size();
+    }
+
+    void tick() {
+        synchronized( this ) {
+            if( watches.isEmpty() ) {
+                // Nothing to watch - the task will be started again by the next request
+                task.cancel(false);
+                task = null;
+                return;
+            }
+        }
+
+        // Checking the local conditions first and grouping the due ones by Application to request each once
+        long now = System.currentTimeMillis();
+        Map<UUID, List<Watch>> to_request = new HashMap<>();
+        for( Watch watch : watches ) {
+            try {
+                if( watch.future.isDone() ) {
+                    watches.remove(watch);
+                } else if( watch.done != null && watch.done.getAsBoolean() ) {
+                    watches.remove(watch);
+                    watch.future.complete(null);
+                } else if( watch.deadline > 0 && watch.deadline < now ) {
+                    watches.remove(watch);
+                    watch.future.completeExceptionally(new TimeoutException(
+                            "Timeout waiting for Application " + watch.app_uid + " to leave " + watch.pending));
+                } else if( watch.next_poll <= now ) {
+                    to_request.computeIfAbsent(watch.app_uid, k -> new ArrayList<>()).add(watch);
+                }
+            } catch( Exception e ) {
+                watches.remove(watch);
+                watch.future.completeExceptionally(e);
+            }
+        }
+
+        if( to_request.isEmpty() )
+            return;
+
+        AquariumClient client;
+        try {
+            client = cloud.getClient();
+        } catch( Exception e ) {
+            LOG.log(Level.WARNING, "Unable to get client of cloud " + cloud.name + ": " + e);
+            return;
+        }
+
+        // Limiting the requests of the tick, the longest waiting Applications are requested first
+        List<Map.Entry<UUID, List<Watch>>> due = new ArrayList<>(to_request.entrySet());
+        if( due.size() > MAX_REQUESTS ) {
+            due.sort(Comparator.comparingLong(e -> e.getValue().get(0).next_poll));
+            due = due.subList(0, MAX_REQUESTS);
+        }
+        List<Callable<Void>> requests = new ArrayList<>(due.size());
+        for( Map.Entry<UUID, List<Watch>> entry : due ) {
+            requests.add(() -> {
+                request(client, entry.getKey(), entry.getValue());
+                return null;
+            });
+        }
+        try {
+            // Waiting for the requests, so the next tick is not overlapping with them
+            REQUESTS.invokeAll(requests);
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void request(AquariumClient client, UUID app_uid, List<Watch> app_watches) {
+        ApplicationState state;
+        try {
+            state = client.applicationStateGet(app_uid);
+        } catch( Exception e ) {
+            if( e instanceof ApiException ) {
+                LOG.log(Level.WARNING, "Error happened during API request:" + e + ", Application:" + app_uid);
+            } else {
+                LOG.log(Level.WARNING, "Unable to get state of Application " + app_uid, e);
+            }
+            // Backing off to not overload the struggling cluster
+            for( Watch watch : app_watches ) {
+                watch.next_poll = System.currentTimeMillis() + watch.errors.next();
+            }
+            return;
+        }
+        for( Watch watch : app_watches ) {
+            if( !watch.pending.contains(state.getStatus()) ) {
+                watches.remove(watch);
+                watch.future.complete(state);
+            } else {
+                watch.errors.reset();
+                watch.next_poll = System.currentTimeMillis() + watch.poll.next();
+            }
+        }
+    }
+}
@@ -13,46 +13,199 @@
 package com.adobe.ci.aquarium.net;
 
 import com.adobe.ci.aquarium.fish.client.ApiClient;
+import com.adobe.ci.aquarium.fish.client.ApiException;
 import com.adobe.ci.aquarium.fish.client.api.ApplicationApi;
 import com.adobe.ci.aquarium.fish.client.api.LabelApi;
+import com.adobe.ci.aquarium.fish.client.api.NodeApi;
 import com.adobe.ci.aquarium.fish.client.api.UserApi;
 import com.adobe.ci.aquarium.fish.client.model.*;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.model.Computer;
 import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamedThreadFactory;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.jenkinsci.plugins.plaincredentials.FileCredentials;
 
+import javax.annotation.CheckForNull;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
+import java.net.ConnectException;
+import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class AquariumClient {
-    String node_url; // TODO: replace with nodes pool
+    private static final Logger LOG = Logger.getLogger(AquariumClient.class.getName());
+
+    // How often to discover the cluster nodes and probe their health
+    private static final long HEALTH_CHECK_INTERVAL = Long
+            .getLong(AquariumClient.class.getName() + ".healthCheckInterval", 30000L);
+
+    // How long the failed node will not receive the requests until the next successful probe
+    private static final long NODE_FAILURE_TIMEOUT = Long
+            .getLong(AquariumClient.class.getName() + ".nodeFailureTimeout", 60000L);
+
+    // How long the latest label version is used without checking the cluster for the new one
+    private static final long LABEL_CACHE_TTL = Long
+            .getLong(AquariumClient.class.getName() + ".labelCacheTtl", 300000L);
+
+    // The background requests to the cluster are blocking, so they are not executed on the shared Jenkins timer
+    static final ScheduledExecutorService BACKGROUND = Executors.newScheduledThreadPool(
+            Integer.getInteger(AquariumClient.class.getName() + ".backgroundThreads", 4),
+            new NamedThreadFactory(new DaemonThreadFactory(), "Aquarium background"));
+
+    // Application metadata key with the marker of the cloud created the Application
+    static final String OWNER_METADATA = "JENKINS_CLOUD";
+
+    String node_url;
     String cred_id;
     String ca_cert_id;
 
-    List<ApiClient> api_client_pool = new ArrayList<ApiClient>();
+    // Resolved once from the credentials to configure the clients of the discovered nodes
+    private String username;
+    private String password;
 
-    AquariumClient(String url, String credentials_id, String ca_cert_id) {
-        this.node_url = url;
+    // Pool of the known cluster nodes, the first one is always the init node. It's shared between the
+    // threads, all the nodes are reusing the same OkHttp client so connections & TLS sessions are reused
+    final List<FishNode> node_pool = new CopyOnWriteArrayList<>();
+
+    private ScheduledFuture<?> health_check;
+
+    // Per-operation stats of the requests, the interceptor is added to the shared http client
+    final ApiMetricsInterceptor api_metrics;
+
+    // Latest versions of the labels by name, the labels are immutable so only the new versions matter
+    private final ConcurrentHashMap<String, CachedLabel> latest_labels = new ConcurrentHashMap<>();
+    private final Set<String> label_updating = ConcurrentHashMap.newKeySet();
+
+    // Additional metadata is the same for all the Applications of the cloud
+    private volatile ParsedMetadata parsed_metadata;
+
+    private static class ParsedMetadata {
+        final String source;
+        final Map<String, String> values;
+
+        ParsedMetadata(String source, Map<String, String> values) {
+            this.source = source;
+            this.values = values;
+        }
+    }
+
+    private static class CachedLabel {
+        final Label label;
+        final long expires = System.currentTimeMillis() + LABEL_CACHE_TTL;
+
+        CachedLabel(Label label) {
+            this.label = label;
+        }
+
+        boolean isExpired() {
+            return expires < System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Executes the API request on the provided node client
+     */
+    interface ApiCall<T> {
+        T call(ApiClient cl) throws Exception;
+    }
+
+    /**
+     * Cluster node with its connection and the routing stats
+     */
+    static class FishNode {
+        final String url;
+        final ApiClient api;
+
+        // Moving average of the request latency in ms
+        volatile double latency = 0;
+        // Time when the node failed last time, 0 if the node is healthy
+        volatile long failed_at = 0;
+        final AtomicInteger in_flight = new AtomicInteger();
+
+        FishNode(String url, ApiClient api) {
+            this.url = url;
+            this.api = api;
+        }
+
+        boolean isHealthy() {
+            return failed_at == 0 || failed_at + NODE_FAILURE_TIMEOUT < System.currentTimeMillis();
+        }
+
+        // Lower is better: latency multiplied by the requests in flight to spread the load across the nodes
+        double score() {
+            return (latency + 1) * (in_flight.get() + 1);
+        }
+
+        void success(long nanos) {
+            double ms = nanos / 1000000.0;
+            latency = latency == 0 ? ms : latency * 0.8 + ms * 0.2;
+            failed_at = 0;
+        }
+
+        void failure() {
+            failed_at = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("FishNode{url='%s', latency=%.1fms, healthy=%s}", url, latency, isHealthy());
+        }
+    }
+
+    /**
+     * @param cloud_name name of the cloud in the API metrics, null to keep the stats only in the client
+     */
+    AquariumClient(@CheckForNull String cloud_name, String url, String credentials_id, String ca_cert_id) {
+        this(cloud_name, url);
         this.cred_id = credentials_id;
         this.ca_cert_id = ca_cert_id;
 
         startConnection();
     }
 
+    /**
+     * Creates the client with plain credentials and without the SSL verification, it does not need
+     * the Jenkins credentials store so could be pointed to a local stand-in of the cluster
+     */
+    static AquariumClient forStandIn(String url, String username, String password) {
+        AquariumClient out = new AquariumClient(url, url);
+        out.username = username;
+        out.password = password;
+
+        ApiClient cl = out.newApiClient(url);
+        cl.setVerifyingSsl(false);
+        out.addInitNode(cl);
+        return out;
+    }
+
+    private AquariumClient(@CheckForNull String cloud_name, String url) {
+        this.api_metrics = new ApiMetricsInterceptor(cloud_name);
+        this.node_url = url;
+    }
+
     private void startConnection() {
-        if( api_client_pool.size() < 1 ) {
-            ApiClient cl = new ApiClient();
-            cl.setBasePath(this.node_url);
-            cl.setUsername(getBasicAuthCreds(this.cred_id).getUsername());
-            cl.setPassword(getBasicAuthCreds(this.cred_id).getPassword().getPlainText());
+        if( node_pool.size() < 1 ) {
+            StandardUsernamePasswordCredentials creds = getBasicAuthCreds(this.cred_id);
+            this.username = creds.getUsername();
+            this.password = creds.getPassword().getPlainText();
+            ApiClient cl = newApiClient(this.node_url);
             if( this.ca_cert_id == null || this.ca_cert_id.isEmpty() ) {
                 cl.setVerifyingSsl(false);
             } else {
@@ -60,10 +213,162 @@ public class AquariumClient {
                     cl.setSslCaCert(getCaAuthCreds(this.ca_cert_id).getContent());
                 } catch( Exception e ) {}
             }
-            api_client_pool.add(cl);
+            addInitNode(cl);
+        }
+    }
+
+    private ApiClient newApiClient(String url) {
+        ApiClient cl = new ApiClient();
+        cl.setBasePath(url);
+        cl.setUsername(this.username);
+        cl.setPassword(this.password);
+        return cl;
+    }
+
+    private void addInitNode(ApiClient cl) {
+        // Should be added after the SSL configuration because it recreates the http client
+        cl.setHttpClient(cl.getHttpClient().newBuilder().addInterceptor(api_metrics).build());
+        node_pool.add(new FishNode(this.node_url, cl));
+    }
+
+    /**
+     * Starts background discovery & health probing of the cluster nodes
+     */
+    synchronized void start() {
+        if( health_check == null ) {
+            health_check = BACKGROUND.scheduleWithFixedDelay(this::checkNodes,
+                    0, HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
         }
     }
 
+    /**
+     * Stops the background activities of the client
+     */
+    synchronized void close() {
+        if( health_check != null ) {
+            health_check.cancel(false);
+            health_check = null;
+        }
+    }
+
+    List<FishNode> getNodes() {
+        return Collections.unmodifiableList(node_pool);
+    }
+
+    private FishNode createNode(String url) {
+        ApiClient init = node_pool.get(0).api;
+        ApiClient cl = newApiClient(url);
+        // Sharing the http client to reuse the connection pool and SSL configuration
+        cl.setHttpClient(init.getHttpClient());
+        return new FishNode(url, cl);
+    }
+
+    /**
+     * Discovers the cluster nodes and probes their availability
+     */
+    void checkNodes() {
+        try {
+            // Using the current nodes to get the list of the cluster nodes
+            List<Node> nodes = call("nodeListGet", cl -> new NodeApi(cl).nodeListGet(null), true);
+            // The nodes are reporting just the address, the API path is the same as on the init node
+            URL init = new URL(this.node_url);
+            Set<String> urls = new HashSet<>();
+            urls.add(node_pool.get(0).url);
+            for( Node n : nodes ) {
+                if( n.getAddress() == null || n.getAddress().isEmpty() )
+                    continue;
+                String url = init.getProtocol() + "://" + n.getAddress() + init.getPath();
+                urls.add(url);
+                if( node_pool.stream().noneMatch(fn -> fn.url.equals(url)) ) {
+                    LOG.log(Level.INFO, "Discovered Aquarium Fish node: " + url);
+                    node_pool.add(createNode(url));
+                }
+            }
+            // Removing the nodes which are not in the cluster anymore (but never the init one)
+            for( FishNode fn : new ArrayList<>(node_pool.subList(1, node_pool.size())) ) {
+                if( !urls.contains(fn.url) ) {
+                    LOG.log(Level.INFO, "Aquarium Fish node left the cluster: " + fn.url);
+                    node_pool.remove(fn);
+                }
+            }
+        } catch( Exception e ) {
+            LOG.log(Level.WARNING, "Unable to discover Aquarium Fish cluster nodes: " + e.getMessage());
+        }
+
+        // Probing each node separately to update the routing stats
+        String prev_operation = ApiMetricsInterceptor.setOperation("healthCheck");
+        for( FishNode fn : node_pool ) {
+            long start = System.nanoTime();
+            try {
+                new UserApi(fn.api).userMeGet();
+                fn.success(System.nanoTime() - start);
+            } catch( Exception e ) {
+                if( fn.isHealthy() ) {
+                    LOG.log(Level.WARNING, "Aquarium Fish node is not available: " + fn.url + ": " + e.getMessage());
+                }
+                fn.failure();
+            }
+        }
+        ApiMetricsInterceptor.setOperation(prev_operation);
+        LOG.log(Level.FINE, "Aquarium Fish nodes: " + node_pool);
+    }
+
+    /**
+     * Returns true if the request failed because of the node and could be retried on another one
+     */
+    private static boolean isNodeFailure(ApiException e, boolean idempotent) {
+        if( !idempotent ) {
+            // The request could be processed already, so retry only if it was not able to connect at all
+            return e.getCause() instanceof ConnectException;
+        }
+        return e.getCode() == 0 || e.getCode() == 502 || e.getCode() == 503 || e.getCode() == 504;
+    }
+
+    /**
+     * Executes the request on the best available node and fails over to the others if it's not responding
+     * @param operation name of the API operation for the metrics
+     */
+    <T> T call(String operation, ApiCall<T> fn, boolean idempotent) throws Exception {
+        // Healthy nodes goes first, sorted by their latency & load
+        List<FishNode> nodes = new ArrayList<>(node_pool);
+        nodes.sort(Comparator.comparing((FishNode n) -> !n.isHealthy()).thenComparingDouble(FishNode::score));
+
+        String prev_operation = ApiMetricsInterceptor.setOperation(operation);
+        ApiException last = null;
+        try {
+            for( FishNode node : nodes ) {
+                if( last != null ) {
+                    api_metrics.retry(operation);
+                }
+                long start = System.nanoTime();
+                node.in_flight.incrementAndGet();
+                try {
+                    T out = fn.call(node.api);
+                    node.success(System.nanoTime() - start);
+                    return out;
+                } catch( ApiException e ) {
+                    if( !isNodeFailure(e, idempotent) )
+                        throw e;
+                    LOG.log(Level.WARNING, "Aquarium Fish node " + node.url + " failed to process request: " + e.getMessage());
+                    node.failure();
+                    last = e;
+                } finally {
+                    node.in_flight.decrementAndGet();
+                }
+            }
+        } finally {
+            ApiMetricsInterceptor.setOperation(prev_operation);
+        }
+        throw last;
+    }
+
+    /**
+     * Returns the per-operation stats of the API requests
+     */
+    List<ApiMetricsInterceptor.OperationStats> getApiStats() {
+        return api_metrics.getStats();
+    }
+
     private static StandardUsernamePasswordCredentials getBasicAuthCreds(String credentialsId) {
         StandardUsernamePasswordCredentials c = (StandardUsernamePasswordCredentials) CredentialsMatchers.firstOrNull(
                 CredentialsProvider.lookupCredentials(
@@ -99,39 +404,109 @@ public class AquariumClient {
     }
 
     public List<Label> labelGet() throws Exception {
-        startConnection();
-        return new LabelApi(api_client_pool.get(0)).labelListGet(null);
+        List<Label> labels = call("labelListGet", cl -> new LabelApi(cl).labelListGet(null), true);
+        // All the label versions are here, so no need to request them again during launch
+        labels.forEach(this::updateLatestLabel);
+        return labels;
     }
 
     public List<Label> labelFind(String name) throws Exception {
-        startConnection();
-        return new LabelApi(api_client_pool.get(0)).labelListGet("name='" + StringEscapeUtils.escapeSql(name) + "'");
+        String filter = "name='" + StringEscapeUtils.escapeSql(name) + "'";
+        return call("labelListGet", cl -> new LabelApi(cl).labelListGet(filter), true);
     }
 
+    /**
+     * Returns the latest version of the label from the cache, the stale one is returned as well but
+     * the update is scheduled in background
+     */
     public Label labelFindLatest(String name) throws Exception {
-        // TODO: not actually optimal to get all the labels, better the latest and only ID.
+        CachedLabel cached = latest_labels.get(name);
+        if( cached != null ) {
+            if( cached.isExpired() && label_updating.add(name) ) {
+                Computer.threadPoolForRemoting.execute(() -> {
+                    try {
+                        requestLatestLabel(name);
+                    } catch( Exception e ) {
+                        LOG.log(Level.WARNING, "Unable to update label " + name + ": " + e.getMessage());
+                    } finally {
+                        label_updating.remove(name);
+                    }
+                });
+            }
+            return cached.label;
+        }
+
+        return requestLatestLabel(name);
+    }
+
+    private Label requestLatestLabel(String name) throws Exception {
+        // The API have no way to request just the latest version, so getting all of them
         List<Label> labels = labelFind(name);
         if( labels.isEmpty() )
             throw new Exception("Application create unable find label " + name);
 
-        return labels.stream().max(Comparator.comparing(l -> l.getVersion())).get();
+        Label latest = labels.stream().max(Comparator.comparing(l -> l.getVersion())).get();
+        updateLatestLabel(latest);
+        return latest;
+    }
+
+    private void updateLatestLabel(Label label) {
+        CachedLabel update = new CachedLabel(label);
+        latest_labels.merge(label.getName(), update, (prev, next) ->
+                next.label.getVersion() >= prev.label.getVersion() ? next : prev);
     }
 
-    public Application applicationCreate(UUID label_uid, String jenkins_url, String agent_name, String agent_secret, String add_metadata) throws Exception {
+    public Application applicationCreate(UUID label_uid, String jenkins_url, String owner, String agent_name, String agent_secret, String add_metadata) throws Exception {
         Application app = new Application();
 
+        app.setMetadata(buildMetadata(jenkins_url, owner, agent_name, agent_secret, add_metadata));
+        // Sorting the labels by version and using the max one
+        app.setLabelUID(label_uid);
+
+        return call("applicationCreatePost", cl -> new ApplicationApi(cl).applicationCreatePost(app), false);
+    }
+
+    /**
+     * Builds the metadata of the Application, it's used by the resource to connect the agent to Jenkins
+     */
+    JSONObject buildMetadata(String jenkins_url, String owner, String agent_name, String agent_secret, String add_metadata) {
         JSONObject metadata = new JSONObject();
         metadata.put("JENKINS_URL", jenkins_url);
+        metadata.put(OWNER_METADATA, owner);
         metadata.put("JENKINS_AGENT_NAME", agent_name);
         metadata.put("JENKINS_AGENT_SECRET", agent_secret);
+        metadata.putAll(parseMetadata(add_metadata));
+        return metadata;
+    }
 
+    public List<Application> applicationList(String filter) throws Exception {
+        return call("applicationListGet", cl -> new ApplicationApi(cl).applicationListGet(filter), true);
+    }
+
+    /**
+     * Returns the Applications created with the owner marker, the list is filtered by the cluster
+     * but the match is not exact so the caller still need to check the metadata
+     */
+    public List<Application> applicationFindOwned(String owner) throws Exception {
+        return applicationList("metadata LIKE '%" + StringEscapeUtils.escapeSql(owner) + "%'");
+    }
+
+    /**
+     * Parses the additional metadata lines, the result is kept while the config is not changed
+     */
+    private Map<String, String> parseMetadata(String add_metadata) {
+        ParsedMetadata parsed = this.parsed_metadata;
+        if( parsed != null && Objects.equals(parsed.source, add_metadata) )
+            return parsed.values;
+
+        Map<String, String> values = new LinkedHashMap<>();
         if( add_metadata != null && ! add_metadata.isEmpty() ) {
             try (BufferedReader reader = new BufferedReader(new StringReader(add_metadata))) {
                 String line = reader.readLine();
                 while (line != null) {
                     String[] line_sep = line.split("=", 2);
                     if (line_sep.length == 2) {
-                        metadata.put(line_sep[0], line_sep[1]);
+                        values.put(line_sep[0], line_sep[1]);
                     }
                     line = reader.readLine();
                 }
@@ -139,40 +514,37 @@ public class AquariumClient {
                 // nop
             }
         }
-
-        app.setMetadata(metadata);
-        // Sorting the labels by version and using the max one
-        app.setLabelUID(label_uid);
-
-        return new ApplicationApi(api_client_pool.get(0)).applicationCreatePost(app);
+        this.parsed_metadata = new ParsedMetadata(add_metadata, Collections.unmodifiableMap(values));
+        return values;
     }
 
     public ApplicationState applicationStateGet(UUID app_uid) throws Exception {
-        startConnection();
-        return new ApplicationApi(api_client_pool.get(0)).applicationStateGet(app_uid);
+        return call("applicationStateGet", cl -> new ApplicationApi(cl).applicationStateGet(app_uid), true);
     }
 
     public Resource applicationResourceGet(UUID app_uid) throws Exception {
-        startConnection();
-        return new ApplicationApi(api_client_pool.get(0)).applicationResourceGet(app_uid);
+        return call("applicationResourceGet", cl -> new ApplicationApi(cl).applicationResourceGet(app_uid), true);
     }
 
     public void applicationTaskSnapshot(UUID app_uid, ApplicationStatus when, Boolean full) throws Exception {
-        startConnection();
         ApplicationTask task = new ApplicationTask();
         task.setTask("snapshot");
         task.setWhen(when);
         task.setOptions(Collections.singletonMap("full", full));
-        new ApplicationApi(api_client_pool.get(0)).applicationTaskCreatePost(app_uid, task);
+        call("applicationTaskCreatePost", cl -> {
+            new ApplicationApi(cl).applicationTaskCreatePost(app_uid, task);
+            return null;
+        }, false);
     }
 
     public void applicationDeallocate(UUID app_uid) throws Exception {
-        startConnection();
-        new ApplicationApi(api_client_pool.get(0)).applicationDeallocateGet(app_uid);
+        call("applicationDeallocateGet", cl -> {
+            new ApplicationApi(cl).applicationDeallocateGet(app_uid);
+            return null;
+        }, true);
     }
 
     public User meGet() throws Exception {
-        startConnection();
-        return new UserApi(api_client_pool.get(0)).userMeGet();
+        return call("userMeGet", cl -> new UserApi(cl).userMeGet(), true);
     }
 }
@@ -12,6 +12,7 @@
 
 package com.adobe.ci.aquarium.net;
 
+import com.adobe.ci.aquarium.fish.client.model.Application;
 import com.adobe.ci.aquarium.fish.client.model.User;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
@@ -21,14 +22,19 @@ import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import com.google.common.util.concurrent.Futures;
 import hudson.Extension;
 import hudson.Util;
+import hudson.XmlFile;
 import hudson.model.*;
 import hudson.model.labels.LabelAtom;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.SubTask;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
+import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProvisioner.PlannedNode;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import jenkins.slaves.JnlpAgentReceiver;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.FileCredentials;
 import org.kohsuke.stapler.AncestorInPath;
@@ -42,7 +48,12 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -55,6 +66,21 @@ public class AquariumCloud extends Cloud {
 
     private static final Logger LOG = Logger.getLogger(AquariumCloud.class.getName());
 
+    // How long the cluster labels are considered fresh
+    private static final long LABELS_CACHE_TTL = Long
+            .getLong(AquariumCloud.class.getName() + ".labelsCacheTtl", 1800000L);
+
+    // Create the Applications during provisioning instead of waiting for the launcher
+    private static final boolean PIPELINED_LAUNCH = !Boolean
+            .getBoolean(AquariumCloud.class.getName() + ".disablePipelinedLaunch");
+
+    // Clouds with the started clients - Jenkins creates the new cloud instances on each configuration save,
+    // so the clients of the replaced ones need to be stopped or handed over to the new instances
+    private static final Set<AquariumCloud> ACTIVE_CLIENTS = ConcurrentHashMap.newKeySet();
+
+    // Serializes the warm pools replenishment triggered by the periodic work and the taken warm agents
+    private static final Object WARM_POOLS_LOCK = new Object();
+
     private String initHostUrl;
     @CheckForNull
     private String credentialsId;
@@ -62,10 +88,35 @@ public class AquariumCloud extends Cloud {
     private String jenkinsUrl;
     private String metadata;
     private List<LabelMapping> labelMappings = new ArrayList<>();
+    private List<WarmPool> warmPools = new ArrayList<>();
+    private int maxAgents;
+    private int maxElectionsPerNode;
+    private int electionTimeout;
+    private String labelLimits;
+    private String folderLimits;
+
+    private transient ProvisioningLimits limits;
+    private transient LabelMapping.Matcher labelMatcher;
+
+    // A collection of labels supported by the Auqarium Fish cluster, replaced atomically on update
+    private transient volatile LabelsCache labelsCache;
+    private transient AtomicBoolean labelsCacheUpdating = new AtomicBoolean();
 
-    // A collection of labels supported by the Auqarium Fish cluster
-    private Set<LabelAtom> labelsCached;
-    private long labelsCachedUpdateTime = 0;
+    // Long-lived client to reuse the connections, recreated only when connection settings are changed
+    private transient volatile AquariumClient client;
+
+    // Watches the states of the Applications being launched by this cloud
+    private transient ApplicationStatePoller statePoller;
+
+    // Finds the leaked Applications and dead agents of this cloud
+    private transient ApplicationReconciler reconciler;
+
+    // Moving average of the time in ms from the agent creation till it's online, used to choose the cloud
+    private transient volatile double allocationLatency;
+
+    // Planned agents which Applications are being created, they are not Jenkins nodes yet. Changed without
+    // the cloud lock by the remoting threads, while provision() is reading it under the Queue lock
+    private transient AtomicInteger preparing = new AtomicInteger();
 
     @DataBoundConstructor
     public AquariumCloud(String name) {
@@ -73,6 +124,13 @@ public class AquariumCloud extends Cloud {
         LOG.log(Level.INFO, "STARTING Aquarium CLOUD");
     }
 
+    protected Object readResolve() {
+        // The transient fields are not initialized when the cloud is loaded from the config
+        preparing = new AtomicInteger();
+        labelsCacheUpdating = new AtomicBoolean();
+        return this;
+    }
+
     // Used by jelly
     public String getName() {
         return name;
@@ -95,28 +153,155 @@ public class AquariumCloud extends Cloud {
     // Used by jelly
     public String getMetadata() { return metadata; }
 
+    /**
+     * Marker of the Applications created by this cloud: the clouds of the different controllers could
+     * use the same Aquarium cluster and user, so the cloud name alone is not enough
+     */
+    String getOwnerMarker() {
+        String url = Util.fixEmpty(jenkinsUrl);
+        if( url == null )
+            url = Util.fixNull(Jenkins.get().getRootUrl());
+        return url + "#" + name;
+    }
+
     // Used by jelly
     public List<LabelMapping> getLabelMappings() {
         return labelMappings;
     }
 
+    // Used by jelly
+    public int getMaxAgents() { return maxAgents; }
+
+    // Used by jelly
+    public int getMaxElectionsPerNode() { return maxElectionsPerNode; }
+
+    // Used by jelly
+    public int getElectionTimeout() { return electionTimeout; }
+
+    /**
+     * Returns time in ms the Application could wait for the election, 0 - forever
+     */
+    long getElectionTimeoutMs() {
+        return TimeUnit.MINUTES.toMillis(electionTimeout);
+    }
+
+    // Used by jelly
+    public String getLabelLimits() { return labelLimits; }
+
+    // Used by jelly
+    public String getFolderLimits() { return folderLimits; }
+
+    // Used by jelly
+    public List<WarmPool> getWarmPools() {
+        return warmPools == null ? Collections.emptyList() : warmPools;
+    }
+
+    // Used by jelly
+    public List<ApiMetricsInterceptor.OperationStats> getApiStats() {
+        // Not creating the client just to show the stats
+        AquariumClient cl = this.client;
+        return cl == null ? Collections.emptyList() : cl.getApiStats();
+    }
+
     public AquariumClient getClient() {
-        return new AquariumClient(this.initHostUrl, this.credentialsId, this.caCredentialsId);
+        AquariumClient cl = this.client;
+        if( cl == null ) {
+            synchronized( this ) {
+                cl = this.client;
+                if( cl == null ) {
+                    cl = new AquariumClient(this.name, this.initHostUrl, this.credentialsId, this.caCredentialsId);
+                    cl.start();
+                    this.client = cl;
+                    ACTIVE_CLIENTS.add(this);
+                }
+            }
+        }
+        return cl;
+    }
+
+    public synchronized ApplicationStatePoller getStatePoller() {
+        if( this.statePoller == null ) {
+            this.statePoller = new ApplicationStatePoller(this);
+        }
+        return this.statePoller;
+    }
+
+    public synchronized ApplicationReconciler getReconciler() {
+        if( this.reconciler == null ) {
+            this.reconciler = new ApplicationReconciler(this);
+        }
+        return this.reconciler;
+    }
+
+    private synchronized void resetClient() {
+        if( this.client != null ) {
+            this.client.close();
+        }
+        this.client = null;
+    }
+
+    /**
+     * Stops the clients of the clouds which are not in the Jenkins configuration anymore. The client is
+     * kept by the new instance of the cloud with the same name if the connection settings are the same.
+     * The launches in progress of the replaced cloud are still able to use the stopped client.
+     */
+    static void releaseReplacedClients() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if( jenkins == null )
+            return;
+        for( AquariumCloud old : ACTIVE_CLIENTS ) {
+            if( jenkins.clouds.contains(old) )
+                continue;
+            ACTIVE_CLIENTS.remove(old);
+            AquariumClient cl = old.client;
+            if( cl == null )
+                continue;
+            Cloud c = jenkins.getCloud(old.name);
+            if( c instanceof AquariumCloud && ((AquariumCloud) c).adoptClient(old, cl) ) {
+                LOG.log(Level.FINE, "Client of the cloud " + old.name + " was handed over to the new instance");
+                continue;
+            }
+            LOG.log(Level.INFO, "Stopping client of the replaced cloud " + old.name);
+            cl.close();
+        }
+    }
+
+    private synchronized boolean adoptClient(AquariumCloud old, AquariumClient cl) {
+        if( this.client != null
+                || !Objects.equals(this.initHostUrl, old.initHostUrl)
+                || !Objects.equals(this.credentialsId, old.credentialsId)
+                || !Objects.equals(this.caCredentialsId, old.caCredentialsId) )
+            return false;
+        this.client = cl;
+        ACTIVE_CLIENTS.add(this);
+        return true;
     }
 
     @DataBoundSetter
     public void setInitHostUrl(String value) {
-        this.initHostUrl = Util.fixEmptyAndTrim(value);
+        value = Util.fixEmptyAndTrim(value);
+        if( !Objects.equals(this.initHostUrl, value) ) {
+            this.initHostUrl = value;
+            resetClient();
+        }
     }
 
     @DataBoundSetter
     public void setCredentialsId(String value) {
-        credentialsId = Util.fixEmpty(value);
+        value = Util.fixEmpty(value);
+        if( !Objects.equals(this.credentialsId, value) ) {
+            this.credentialsId = value;
+            resetClient();
+        }
     }
 
     @DataBoundSetter
     public void setCaCredentialsId(String value) {
-        caCredentialsId = Util.fixEmpty(value);
+        value = Util.fixEmpty(value);
+        if( !Objects.equals(this.caCredentialsId, value) ) {
+            this.caCredentialsId = value;
+            resetClient();
+        }
     }
 
     @DataBoundSetter
@@ -135,28 +320,163 @@ public class AquariumCloud extends Cloud {
         if( labels != null ) {
             this.labelMappings.addAll(labels);
         }
+        this.labelMatcher = new LabelMapping.Matcher(this.labelMappings);
+    }
+
+    private LabelMapping.Matcher getLabelMatcher() {
+        LabelMapping.Matcher out = this.labelMatcher;
+        if( out == null ) {
+            out = new LabelMapping.Matcher(this.labelMappings == null ? Collections.emptyList() : this.labelMappings);
+            this.labelMatcher = out;
+        }
+        return out;
+    }
+
+    /**
+     * Immutable snapshot of the labels supported by the cluster with memoized resolution of the
+     * label expressions - it's dropped together with the snapshot when the labels are updated
+     */
+    static final class LabelsCache {
+        final Set<LabelAtom> labels;
+        final long expires;
+
+        private final ConcurrentHashMap<String, Boolean> provisionable = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, String> resolved = new ConcurrentHashMap<>();
+
+        LabelsCache(Set<LabelAtom> labels, long expires) {
+            this.labels = Collections.unmodifiableSet(labels);
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return expires < System.currentTimeMillis();
+        }
+
+        /**
+         * Checks if the label expression could be served by the cluster labels
+         */
+        boolean canProvision(Label label) {
+            return provisionable.computeIfAbsent(label.getExpression(), k -> {
+                // Simple comparison by label name
+                if( labels.contains(label) )
+                    return true;
+
+                // Match of the label expression
+                return label.matches(labels);
+            });
+        }
+
+        /**
+         * Finds first cluster label that is matching to the requested expression
+         * @return name of the label or empty string if nothing matches
+         */
+        String resolve(Label label) {
+            return resolved.computeIfAbsent(label.getExpression(), k -> {
+                Set<LabelAtom> set = new HashSet<LabelAtom>();
+                for( LabelAtom l : labels ) {
+                    set.clear();
+                    set.add(l);
+                    if( label.matches(set) ) {
+                        return l.getName();
+                    }
+                }
+                return "";
+            });
+        }
+    }
+
+    @DataBoundSetter
+    public void setMaxAgents(int value) {
+        this.maxAgents = Math.max(0, value);
+    }
+
+    @DataBoundSetter
+    public void setMaxElectionsPerNode(int value) {
+        this.maxElectionsPerNode = Math.max(0, value);
+    }
+
+    @DataBoundSetter
+    public void setElectionTimeout(int value) {
+        this.electionTimeout = Math.max(0, value);
+    }
+
+    @DataBoundSetter
+    public void setLabelLimits(String value) {
+        this.labelLimits = Util.fixEmpty(value);
+        this.limits = null;
+    }
+
+    @DataBoundSetter
+    public void setFolderLimits(String value) {
+        this.folderLimits = Util.fixEmpty(value);
+        this.limits = null;
+    }
+
+    ProvisioningLimits getLimits() {
+        ProvisioningLimits out = this.limits;
+        if( out == null ) {
+            out = new ProvisioningLimits(this.labelLimits, this.folderLimits);
+            this.limits = out;
+        }
+        return out;
+    }
+
+    @DataBoundSetter
+    public void setWarmPools(@CheckForNull List<WarmPool> pools) {
+        this.warmPools = new ArrayList<>();
+        if( pools != null ) {
+            this.warmPools.addAll(pools);
+        }
     }
 
     @Override
     public boolean canProvision(Label label) {
+        if( label == null )
+            return false;
+
         LOG.log(Level.INFO, "Can provision label expression? : " + label.toString());
-        try {
-            // Update the cache if time has come
-            if( this.labelsCachedUpdateTime < System.currentTimeMillis() ) {
-                this.updateLabelsCache();
-            }
 
-            // Simple comparison by label name
-            if( this.labelsCached.contains(label) )
-                return true;
+        // Using the current labels even if they are stale - the update will happen in background
+        LabelsCache cache = currentLabelsCache();
+        if( cache == null )
+            return false;
+
+        return cache.canProvision(label);
+    }
+
+    @CheckForNull
+    LabelsCache getLabelsCache() {
+        return this.labelsCache;
+    }
 
-            // Match of the label expression
-            return label.matches(this.labelsCached);
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Returns the current labels snapshot and schedules the update if it's stale
+     */
+    @CheckForNull
+    private LabelsCache currentLabelsCache() {
+        LabelsCache cache = this.labelsCache;
+        if( cache == null || cache.isExpired() ) {
+            updateLabelsCacheAsync();
         }
+        return cache;
+    }
 
-        return false;
+    /**
+     * Updates the labels in background, only one update per cloud at a time
+     */
+    void updateLabelsCacheAsync() {
+        // Called by canProvision() & provision() under the Queue lock, so the cloud lock is not used here
+        if( !this.labelsCacheUpdating.compareAndSet(false, true) )
+            return;
+        Computer.threadPoolForRemoting.execute(() -> {
+            try {
+                updateLabelsCache();
+            } catch( Exception e ) {
+                LOG.log(Level.WARNING, "Unable to update labels of cloud " + name + ": " + e.getMessage());
+            } finally {
+                this.labelsCacheUpdating.set(false);
+            }
+        });
     }
 
     public void updateLabelsCache() throws Exception {
@@ -170,33 +490,222 @@ public class AquariumCloud extends Cloud {
             LOG.log(Level.WARNING, "Cluster contains no labels - empty list was returned");
         }
 
-        // Replace the cached labels with newly received
-        this.labelsCached = out;
+        // Replace the cached labels with newly received and set the next update time
+        this.labelsCache = new LabelsCache(out, System.currentTimeMillis() + LABELS_CACHE_TTL);
+    }
 
-        // Set the next labels update cache time to 30 mins from now
-        this.labelsCachedUpdateTime = System.currentTimeMillis() + 1800000;
+    private AquariumSlave.Builder agentBuilder(String label) {
+        // Make sure the aquarium requested label is first in the label list
+        AquariumSlave.Builder builder = AquariumSlave.builder().cloud(this)
+                .addLabel(label).addLabel(getLabelMatcher().getLabels(label));
+        LabelMapping reuse = getLabelMatcher().getReuse(label);
+        if( reuse != null ) {
+            builder.maxBuilds(reuse.getMaxBuilds()).maxLifetime(reuse.getMaxLifetime())
+                    .idleMinutes(reuse.getIdleMinutes());
+        }
+        return builder;
     }
 
-    private PlannedNode buildAgent(String label) {
-        Future<Node> future;
-        String displayName;
+    private PlannedNode buildAgent(String label, @CheckForNull Label jenkinsLabel) {
+        AquariumSlave agent;
         try {
-            // Make sure the aquarium requested label is first in the label list
-            AquariumSlave agent = AquariumSlave.builder().cloud(this)
-                    .addLabel(label).addLabel(LabelMapping.getLabels(this.labelMappings, label)).build();
-            displayName = agent.getDisplayName();
-            future = Futures.immediateFuture(agent);
+            agent = agentBuilder(label).build();
         } catch (IOException | Descriptor.FormException e) {
-            displayName = null;
-            future = Futures.immediateFailedFuture(e);
+            return new PlannedNode("", Futures.immediateFailedFuture(e), 1);
+        }
+        AquariumMetrics.AGENTS_PROVISIONED.add(1, label);
+        if( !PIPELINED_LAUNCH )
+            return new PlannedNode(agent.getDisplayName(), Futures.immediateFuture(agent), 1);
+
+        // Creating the Application right away in parallel with the other planned agents, so the
+        // launcher will just wait for the agent to connect
+        changePreparing(1);
+        CompletableFuture<Node> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                prepareApplication(agent);
+                return agent;
+            } catch( Exception e ) {
+                LOG.log(Level.WARNING, "Unable to create Application for agent " + agent.getNodeName() + ": " + e.getMessage());
+                throw new CompletionException(e);
+            } finally {
+                changePreparing(-1);
+            }
+        }, Computer.threadPoolForRemoting);
+        if( jenkinsLabel != null ) {
+            // No need to wait for the next provisioner cycle to add the node
+            future.whenComplete((n, ex) -> jenkinsLabel.nodeProvisioner.suggestReviewNow());
+        }
+        return new PlannedNode(agent.getDisplayName(), future, 1);
+    }
+
+    /**
+     * Requests the Application for the planned agent with the label from the client cache
+     */
+    private void prepareApplication(AquariumSlave agent) throws Exception {
+        AquariumClient cl = getClient();
+        long started = System.currentTimeMillis();
+        com.adobe.ci.aquarium.fish.client.model.Label label = cl.labelFindLatest(agent.getAquariumLabel());
+        long found = System.currentTimeMillis();
+        Application app = cl.applicationCreate(
+                label.getUID(),
+                getJenkinsUrl(),
+                getOwnerMarker(),
+                agent.getNodeName(),
+                JnlpAgentReceiver.SLAVE_SECRET.mac(agent.getNodeName()),
+                getMetadata()
+        );
+        agent.setPreparedLabel(label);
+        agent.setApplication(app.getUID(), label);
+
+        AquariumMetrics.LAUNCH_PHASE.observe(found - started, label.getName(), "",
+                AquariumLauncher.Phase.LABEL_LOOKUP.name());
+        AquariumMetrics.LAUNCH_PHASE.observe(System.currentTimeMillis() - found, label.getName(), "",
+                AquariumLauncher.Phase.APPLICATION_CREATE.name());
+        LOG.log(Level.INFO, "Application " + app.getUID() + " was requested for agent " + agent.getNodeName());
+    }
+
+    private void changePreparing(int delta) {
+        preparing.addAndGet(delta);
+    }
+
+    /**
+     * Returns all the agents of this cloud - running and in provisioning
+     */
+    List<AquariumSlave> getAgents() {
+        return Jenkins.get().getNodes().stream()
+                .filter(AquariumSlave.class::isInstance)
+                .map(AquariumSlave.class::cast)
+                .filter(n -> name.equals(n.getCloudName()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the warm agents of the label which are not took any task yet
+     */
+    private List<AquariumSlave> getWarmAgents(String label) {
+        return getAgents().stream()
+                .filter(n -> n.isWarm() && label.equals(n.getAquariumLabel()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Keeps the configured amount of the pre-allocated agents for the warm pools labels. The warm agents
+     * are the subject of the same cloud, label and admission limits as the agents for the queue.
+     */
+    public void replenishWarmPools() {
+        // Not locking the cloud - adding the node takes the queue lock, which is held by the provisioning
+        synchronized( WARM_POOLS_LOCK ) {
+            replenishWarmPoolsLocked();
         }
-        return new PlannedNode(Util.fixNull(displayName), future, 1);
+    }
+
+    private void replenishWarmPoolsLocked() {
+        LabelsCache cache = this.labelsCache;
+        for( WarmPool pool : getWarmPools() ) {
+            if( cache == null || !cache.labels.contains(LabelAtom.get(pool.getLabel())) ) {
+                LOG.log(Level.FINE, "Warm pool label is not available in the cluster: " + pool.getLabel());
+                continue;
+            }
+
+            List<AquariumSlave> warm = getWarmAgents(pool.getLabel());
+            int missing = pool.getMinIdle() - warm.size();
+            if( missing > 0 ) {
+                int allowed = applyLimits(pool.getLabel(), missing, getLimits(), getAgents(), cache);
+                if( allowed < missing ) {
+                    LOG.log(Level.INFO, "Limits reached for warm pool " + pool.getLabel() + ": " + allowed + " of " + missing);
+                }
+                missing = allowed;
+            }
+            for( ; missing > 0; missing-- ) {
+                try {
+                    AquariumSlave agent = agentBuilder(pool.getLabel())
+                            .warm(true).idleMinutes(pool.getIdleMinutes()).build();
+                    LOG.log(Level.INFO, "Adding warm agent " + agent.getNodeName() + " for label " + pool.getLabel());
+                    Jenkins.get().addNode(agent);
+                } catch( IOException | Descriptor.FormException e ) {
+                    LOG.log(Level.WARNING, "Unable to add warm agent for label " + pool.getLabel(), e);
+                    break;
+                }
+            }
+
+            // Removing the excess idle agents, the ones still launching will be handled next time
+            int excess = warm.size() - pool.getMaxIdle();
+            for( AquariumSlave agent : warm ) {
+                if( excess <= 0 )
+                    break;
+                Computer computer = agent.toComputer();
+                if( computer == null || !computer.isOnline() || !computer.isIdle() )
+                    continue;
+                LOG.log(Level.INFO, "Removing excess warm agent " + agent.getNodeName() + " for label " + pool.getLabel());
+                agent.setWarm(false);
+                computer.setAcceptingTasks(false);
+                Computer.threadPoolForRemoting.execute(() -> {
+                    try {
+                        agent.terminate();
+                    } catch( IOException | InterruptedException e ) {
+                        LOG.log(Level.WARNING, "Unable to terminate warm agent " + agent.getNodeName(), e);
+                    }
+                });
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Updates the allocation latency with the launch duration
+     */
+    synchronized void recordAllocation(long millis) {
+        allocationLatency = allocationLatency == 0 ? millis : allocationLatency * 0.8 + millis * 0.2;
+    }
+
+    double getAllocationLatency() {
+        return allocationLatency;
+    }
+
+    /**
+     * Returns amount of the agents the cloud could add before it reaches the max agents limit
+     */
+    int getFreeCapacity(List<AquariumSlave> agents) {
+        int free = maxAgents > 0 ? Math.max(0, maxAgents - agents.size() - preparing.get()) : Integer.MAX_VALUE;
+        return Math.min(free, getAdmissionCapacity(agents));
+    }
+
+    /**
+     * Returns amount of the Applications the cluster could accept for the election now. Too many
+     * Applications waiting in the cluster are just overloading the election and the plugin, so the
+     * rest of the demand is staying in the queue until the pending ones will be allocated.
+     */
+    int getAdmissionCapacity(List<AquariumSlave> agents) {
+        AquariumClient cl = this.client;
+        if( maxElectionsPerNode <= 0 || cl == null )
+            return Integer.MAX_VALUE;
+        // The nodes are discovered & probed by the client in background
+        long nodes = cl.getNodes().stream().filter(AquariumClient.FishNode::isHealthy).count();
+        long pending = agents.stream().filter(AquariumCloud::isWaitingElection).count() + preparing.get();
+        return (int) Math.max(0, nodes * maxElectionsPerNode - pending);
+    }
+
+    private static boolean isWaitingElection(AquariumSlave agent) {
+        Computer computer = agent.toComputer();
+        if( !(computer instanceof AquariumComputer) )
+            return true; // Not even started yet
+        ComputerLauncher launcher = ((AquariumComputer) computer).getLauncher();
+        return launcher instanceof AquariumLauncher && ((AquariumLauncher) launcher).isWaitingElection();
+    }
+
+    /**
+     * Returns amount of the agents which are still launching
+     */
+    static int getLaunchingCount(List<AquariumSlave> agents) {
+        return (int) agents.stream().filter(AquariumCloud::isNotAcceptingTasks).count();
     }
 
     private static boolean isNotAcceptingTasks(Node n) {
         Computer computer = n.toComputer();
-        return computer != null && (computer.isLaunchSupported() // Launcher hasn't been called yet
-                || !n.isAcceptingTasks()); // node is not ready yet
+        // The online agent finishing the build is not accepting tasks too, so it's not checked here
+        return computer == null // Computer is not created yet
+                || computer.isLaunchSupported() // Launcher hasn't been called yet or the agent is not online yet
+                || computer instanceof AquariumComputer && ((AquariumComputer) computer).isLaunchInProgress();
     }
 
     public Set<String> getInProvisioning(@CheckForNull Label label) {
@@ -222,33 +731,155 @@ public class AquariumCloud extends Cloud {
         // anymore to decide on this matter, because it's not the resource manager anymore. So we need to allocate only
         // the actually required amount of resources for the provided label.
         Set<String> allInProvisioning = getInProvisioning(label); // Nodes being launched
-        int actualExcessWorkload = Jenkins.get().getQueue().countBuildableItemsFor(label);
+        ProvisioningLimits limits = getLimits();
+        List<AquariumSlave> agents = getAgents();
+        int actualExcessWorkload = countAllowedBuildableItems(label, limits, agents);
         int toBeProvisioned = Math.min(excessWorkload, actualExcessWorkload - allInProvisioning.size());
         if( toBeProvisioned <= 0 )
             return plannedNodes; // No need to provision anything
 
         LOG.log(Level.INFO, "In provisioning : " + allInProvisioning + " and we need to add: " + toBeProvisioned + "(total required: " + actualExcessWorkload + ")");
 
+        LabelsCache cache = currentLabelsCache();
+        if( cache == null )
+            return plannedNodes; // Labels are not received from the cluster yet
+
         // Find first label that is matching to the requested expression
-        String label_name = "";
-        Set<LabelAtom> set = new HashSet<LabelAtom>();
-        for( LabelAtom l : this.labelsCached ) {
-            set.clear();
-            set.add(l);
-            if( label.matches(set) ) {
-                label_name = l.getName();
-                break;
-            }
-        }
+        String label_name = cache.resolve(label);
         LOG.log(Level.INFO, "Chosen label : " + label_name);
 
-        while( toBeProvisioned > 0 /* && Limits */ ) {
-            plannedNodes.add(buildAgent(label_name));
+        toBeProvisioned = applyLimits(label_name, toBeProvisioned, limits, agents, cache);
+        if( toBeProvisioned <= 0 ) {
+            LOG.log(Level.INFO, "Limits reached for label : " + label_name);
+            return plannedNodes;
+        }
+
+        while( toBeProvisioned > 0 ) {
+            plannedNodes.add(buildAgent(label_name, label));
             toBeProvisioned--;
         }
         return plannedNodes;
     }
 
+    /**
+     * Counts the queue items for the label, skipping the items of the folders reached their limits
+     */
+    private static int countAllowedBuildableItems(Label label, ProvisioningLimits limits, List<AquariumSlave> agents) {
+        Queue queue = Jenkins.get().getQueue();
+        if( !limits.hasFolderLimits() )
+            return queue.countBuildableItemsFor(label);
+
+        Map<String, Integer> usage = getFolderUsage(agents);
+        int count = 0;
+        for( Queue.BuildableItem item : queue.getBuildableItems() ) {
+            if( !Objects.equals(item.getAssignedLabel(), label) )
+                continue;
+            String folder = getFolder(item.task);
+            if( !limits.isFolderAllowed(folder, usage) )
+                continue;
+            usage.merge(folder, 1, Integer::sum);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the amount of the agents running builds of each folder
+     */
+    private static Map<String, Integer> getFolderUsage(List<AquariumSlave> agents) {
+        Map<String, Integer> usage = new HashMap<>();
+        for( AquariumSlave agent : agents ) {
+            Computer computer = agent.toComputer();
+            if( computer == null )
+                continue;
+            for( Executor executor : computer.getExecutors() ) {
+                Queue.Executable exec = executor.getCurrentExecutable();
+                if( exec != null ) {
+                    usage.merge(getFolder(exec.getParent()), 1, Integer::sum);
+                }
+            }
+        }
+        return usage;
+    }
+
+    private static String getFolder(SubTask task) {
+        Queue.Task owner = task.getOwnerTask();
+        if( owner instanceof Item ) {
+            return ((Item) owner).getParent().getFullName();
+        }
+        return "";
+    }
+
+    /**
+     * Limits the amount of the agents to provision by the label and cloud limits. When the cloud capacity
+     * is not enough for all the labels in the queue it's divided between them by the label weights.
+     */
+    private int applyLimits(String label_name, int amount, ProvisioningLimits limits, List<AquariumSlave> agents, LabelsCache cache) {
+        int label_max = limits.getLabelMax(label_name);
+        if( label_max >= 0 ) {
+            long label_agents = agents.stream().filter(n -> label_name.equals(n.getAquariumLabel())).count();
+            amount = Math.min(amount, label_max - (int) label_agents);
+        }
+        int admission = getAdmissionCapacity(agents);
+        if( admission < amount ) {
+            LOG.log(Level.INFO, "Admission control of label " + label_name + ": " + admission + " of " + amount);
+            amount = admission;
+        }
+        if( maxAgents <= 0 || amount <= 0 )
+            return amount;
+
+        int free = maxAgents - agents.size() - preparing.get();
+        if( free <= 0 )
+            return 0;
+
+        // Demand of the labels competing for the free capacity, excluding the agents already in provisioning
+        Map<String, Integer> demands = new HashMap<>();
+        for( Queue.BuildableItem item : Jenkins.get().getQueue().getBuildableItems() ) {
+            Label l = item.getAssignedLabel();
+            if( l == null || !cache.canProvision(l) )
+                continue;
+            demands.merge(cache.resolve(l), 1, Integer::sum);
+        }
+        for( AquariumSlave agent : agents ) {
+            if( isNotAcceptingTasks(agent) ) {
+                demands.computeIfPresent(agent.getAquariumLabel(), (k, v) -> v - 1);
+            }
+        }
+        demands.put(label_name, amount);
+
+        int total = demands.values().stream().mapToInt(v -> Math.max(0, v)).sum();
+        if( total <= free )
+            return amount;
+
+        Map<String, Double> weights = new HashMap<>();
+        demands.keySet().forEach(k -> weights.put(k, limits.getLabelWeight(k)));
+        int share = ProvisioningLimits.fairShare(free, demands, weights).get(label_name);
+        LOG.log(Level.INFO, "Fair share of label " + label_name + ": " + share + " of free " + free + " (demands: " + demands + ")");
+        return Math.min(amount, share);
+    }
+
+    /**
+     * Plans the agents ahead of the predicted demand, the agents will be terminated if stay idle
+     */
+    public Collection<PlannedNode> provisionAhead(Label label, int amount) {
+        List<PlannedNode> plannedNodes = new ArrayList<>();
+
+        LabelsCache cache = currentLabelsCache();
+        if( cache == null )
+            return plannedNodes;
+
+        String label_name = cache.resolve(label);
+        if( label_name.isEmpty() )
+            return plannedNodes;
+
+        amount = applyLimits(label_name, amount, getLimits(), getAgents(), cache);
+        LOG.log(Level.INFO, "Provision ahead : " + label.toString() + ", label: " + label_name + ", amount: " + amount);
+        for( int i = 0; i < amount; i++ ) {
+            plannedNodes.add(buildAgent(label_name, label));
+        }
+        return plannedNodes;
+    }
+
     @Override
     public String toString() {
         return "AquariumCloud {Name='" + name + "'}";
@@ -266,6 +897,19 @@ public class AquariumCloud extends Cloud {
         return (DescriptorImpl) super.getDescriptor();
     }
 
+    /**
+     * The clouds configuration is saved together with Jenkins, so it's the moment the clouds are replaced
+     */
+    @Extension
+    public static class ReplacedCloudsListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if( o instanceof Jenkins ) {
+                releaseReplacedClients();
+            }
+        }
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<Cloud> {
 
@@ -287,7 +931,8 @@ public class AquariumCloud extends Cloud {
 
             URL url = null;
             try {
-                User me = new AquariumClient(initHostUrl, credentialsId, caCredentialsId).meGet();
+                // The form validation requests are not counted in the metrics of the cloud
+                User me = new AquariumClient(null, initHostUrl, credentialsId, caCredentialsId).meGet();
                 // Request went with no exceptions - so we're good
                 return FormValidation.ok("Connected to Aquarium Fish node as '%s'", me.getName());
             } catch( Exception e ) {
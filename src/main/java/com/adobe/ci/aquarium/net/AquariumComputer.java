@@ -15,15 +15,24 @@ package com.adobe.ci.aquarium.net;
 import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Queue;
+import hudson.model.TaskListener;
 import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
 import hudson.security.ACL;
 import hudson.security.Permission;
 import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
 import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.jenkinsci.plugins.workflow.support.steps.ExecutorStepExecution.PlaceholderTask;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,6 +41,9 @@ public class AquariumComputer extends AbstractCloudComputer<AquariumSlave> {
 
     private boolean launching;
 
+    // Amount of the builds completed by the reused agent
+    private int completedBuilds;
+
     private JSONObject appInfo;
     private JSONObject definitionInfo;
 
@@ -60,6 +72,29 @@ public class AquariumComputer extends AbstractCloudComputer<AquariumSlave> {
         Queue.Executable exec = executor.getCurrentExecutable();
         LOG.log(Level.INFO, " Computer {0} accepted task {1}", new Object[] {this, exec});
 
+        AquariumSlave node = getNode();
+        WorkUnit wu = executor.getCurrentWorkUnit();
+        if( node != null && wu != null ) {
+            AquariumMetrics.QUEUE_WAIT.observe(System.currentTimeMillis() - wu.context.item.getInQueueSince(),
+                    node.getAquariumLabel());
+        }
+
+        // The warm agent is taken - asking the cloud to replace it in the pool
+        if( node != null && node.isWarm() ) {
+            node.setWarm(false);
+            try {
+                node.save(); // The busy agent should not be warm after the restart
+            } catch( IOException e ) {
+                LOG.log(Level.WARNING, "Could not save() agent: " + e.getMessage(), e);
+            }
+            try {
+                AquariumCloud cloud = node.getAquariumCloud();
+                Computer.threadPoolForRemoting.execute(cloud::replenishWarmPools);
+            } catch( IllegalStateException e ) {
+                LOG.log(Level.WARNING, "Unable to replenish warm pool for node " + node.getNodeName() + ": " + e.getMessage());
+            }
+        }
+
         // Tell the current workflow about the node we're executing on
         // Not that great solution - will be better to use the node step listener somehow, but I did not found a way to do that
         try {
@@ -86,28 +121,59 @@ public class AquariumComputer extends AbstractCloudComputer<AquariumSlave> {
         Queue.Executable exec = executor.getCurrentExecutable();
         LOG.log(Level.FINE, " Computer {0} completed task {1}", new Object[] {this, exec});
 
+        if( isReusable() ) {
+            super.taskCompleted(executor, task, durationMS);
+            return;
+        }
         setAcceptingTasks(false);
         super.taskCompleted(executor, task, durationMS);
         done();
     }
 
+    /**
+     * Counts the completed build and checks the reused agent could take the next one
+     */
+    private synchronized boolean isReusable() {
+        AquariumSlave node = getNode();
+        if( node == null || !node.isReuse() )
+            return false;
+        completedBuilds++;
+        if( completedBuilds >= node.getMaxBuilds() ) {
+            LOG.log(Level.INFO, "Agent {0} reached max builds {1}", new Object[] {getName(), completedBuilds});
+            return false;
+        }
+        long lifetime = System.currentTimeMillis() - getConnectTime();
+        if( node.getMaxLifetime() > 0 && lifetime > TimeUnit.MINUTES.toMillis(node.getMaxLifetime()) ) {
+            LOG.log(Level.INFO, "Agent {0} reached max lifetime after {1} builds", new Object[] {getName(), completedBuilds});
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized int getCompletedBuilds() {
+        return completedBuilds;
+    }
+
     private void done() {
-        // Terminate the node
-        try {
-            AquariumSlave node = getNode();
-            if( node == null ) {
-                LOG.log(Level.WARNING, "Unable to terminate null node: " + getNode());
-                setAcceptingTasks(true);
-                return;
-            }
-            node.terminate();
-        } catch( Exception ex ) {
-            LOG.log(Level.WARNING, "Unable to terminate node due to exception: " + getNode(), ex);
+        AquariumSlave node = getNode();
+        if( node == null ) {
+            LOG.log(Level.WARNING, "Unable to terminate null node: " + getNode());
+            setAcceptingTasks(true);
+            return;
         }
+        // Terminate the node in background to not hold the task completion
+        Computer.threadPoolForRemoting.execute(() -> {
+            try {
+                node.terminate();
+            } catch( Exception ex ) {
+                LOG.log(Level.WARNING, "Unable to terminate node due to exception: " + node, ex);
+            }
+        });
     }
 
     @Override
     public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        // The agent after the failed build could be in a bad shape, so it's not reused
         setAcceptingTasks(false);
         super.taskCompletedWithProblems(executor, task, durationMS, problems);
         Queue.Executable exec = executor.getCurrentExecutable();
@@ -131,6 +197,53 @@ public class AquariumComputer extends AbstractCloudComputer<AquariumSlave> {
         };
     }
 
+    /**
+     * The Aquarium launch is asynchronous, so the connect activity is the launch itself instead of the
+     * thread calling the launcher: the computer stays connecting while the Application is elected and
+     * the agent is connecting, and the launch is not reported as failed when the launcher returns.
+     */
+    @Override
+    protected Future<?> _connect(boolean forceReconnect) {
+        ComputerLauncher launcher = getLauncher();
+        if( !(launcher instanceof AquariumLauncher) || getChannel() != null )
+            return super._connect(forceReconnect);
+        try {
+            return ((AquariumLauncher) launcher).launchAsync(this, getListener());
+        } catch( RuntimeException e ) {
+            CompletableFuture<Void> out = new CompletableFuture<>();
+            out.completeExceptionally(e);
+            return out;
+        }
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return super.isConnecting() || isOffline() && isLaunchInProgress();
+    }
+
+    /**
+     * The Aquarium launch failed: marks the computer offline and notifies the listeners like the
+     * SlaveComputer launch does, it's called before the node is removed
+     */
+    void launchFailed(TaskListener listener) {
+        offlineCause = new OfflineCause.LaunchFailed();
+        for( ComputerListener cl : ComputerListener.all() ) {
+            try {
+                cl.onLaunchFailure(this, listener);
+            } catch( Exception e ) {
+                LOG.log(Level.WARNING, "Computer listener failed on launch failure of " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * The Aquarium launch is waiting for the Application or the agent
+     */
+    boolean isLaunchInProgress() {
+        ComputerLauncher launcher = getLauncher();
+        return launcher instanceof AquariumLauncher && ((AquariumLauncher) launcher).isLaunching();
+    }
+
     public void setLaunching(boolean launching) {
         this.launching = launching;
     }
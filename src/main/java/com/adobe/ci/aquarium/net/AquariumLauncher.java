@@ -12,11 +12,12 @@
 
 package com.adobe.ci.aquarium.net;
 
-import com.adobe.ci.aquarium.fish.client.ApiException;
 import com.adobe.ci.aquarium.fish.client.model.*;
-import com.google.common.base.Throwables;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Functions;
+import hudson.model.Computer;
 import hudson.model.TaskListener;
+import hudson.slaves.CloudRetentionStrategy;
+import hudson.slaves.ComputerListener;
 import hudson.slaves.JNLPLauncher;
 import hudson.slaves.SlaveComputer;
 import net.sf.json.JSONObject;
@@ -25,6 +26,15 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import javax.annotation.CheckForNull;
 import java.io.IOException;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,24 +42,54 @@ public class AquariumLauncher extends JNLPLauncher {
 
     private static final Logger LOG = Logger.getLogger(AquariumLauncher.class.getName());
 
+    // Time to wait for the agent to connect after the Application was allocated
+    private static final long AGENT_CONNECT_TIMEOUT = Long
+            .getLong(AquariumLauncher.class.getName() + ".agentConnectTimeout", 600000L);
+
     private boolean launched;
 
     @CheckForNull
     private transient Throwable problem;
 
+    // Launch in progress, prevents the launcher from starting again while waiting for the agent
+    @CheckForNull
+    private transient Launch launching;
+
     @DataBoundConstructor
     public AquariumLauncher(String tunnel, String vmargs) {
         super(tunnel, vmargs);
     }
 
     @Override
-    public boolean isLaunchSupported() {
+    public synchronized boolean isLaunchSupported() {
         return !launched;
     }
 
+    public synchronized boolean isLaunching() {
+        return launching != null;
+    }
+
+    /**
+     * The Application is not created or not allocated by the cluster yet
+     */
+    public synchronized boolean isWaitingElection() {
+        if( launched )
+            return false;
+        return launching == null || launching.phase.compareTo(Phase.RESOURCE_LOOKUP) < 0;
+    }
+
     @Override
-    @SuppressFBWarnings(value = "SWL_SLEEP_WITH_LOCK_HELD", justification = "This is fine")
-    public synchronized void launch(SlaveComputer computer, TaskListener listener) {
+    public void launch(SlaveComputer computer, TaskListener listener) {
+        launchAsync(computer, listener);
+    }
+
+    /**
+     * Starts the launch sequence and returns immediately - the network requests are executed in the
+     * remoting thread pool and the waiting for the Application & agent is done by the cloud poller, so
+     * no thread is parked while the Application is elected and the agent is connecting.
+     * @return future completed when the agent is online or the launch is failed
+     */
+    synchronized CompletableFuture<Void> launchAsync(SlaveComputer computer, TaskListener listener) {
         if (!(computer instanceof AquariumComputer)) {
             throw new IllegalArgumentException("This Launcher can be used only with AquariumComputer");
         }
@@ -59,125 +99,348 @@ public class AquariumLauncher extends JNLPLauncher {
         if (node == null) {
             throw new IllegalStateException("Node has been removed, cannot launch " + computer.getName());
         }
+        if( launching != null ) {
+            LOG.log(Level.INFO, "Launch of node " + comp.getName() + " is already in progress: " + launching.phase);
+            return launching.done;
+        }
+        if( launched ) {
+            // The agent is reconnecting by itself, the Application is not requested again
+            return CompletableFuture.completedFuture(null);
+        }
 
         LOG.log(Level.INFO, "Launch node" + comp.getName());
 
-        try {
+        launching = new Launch(comp, node, listener);
+        launching.start();
+        listener.getLogger().println("Aquarium launch was started, waiting for the agent to connect");
+        return launching.done;
+    }
+
+    /**
+     * Phases of the launch sequence
+     */
+    enum Phase {
+        LABEL_LOOKUP,
+        APPLICATION_CREATE,
+        ELECTION,
+        RESOURCE_LOOKUP,
+        AGENT_CONNECT,
+        ONLINE,
+        FAILED,
+    }
+
+    /**
+     * Asynchronous launch state machine, each phase is a stage of the CompletableFuture chain
+     */
+    class Launch {
+        final AquariumComputer comp;
+        final AquariumSlave node;
+        final TaskListener listener;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        volatile Phase phase = Phase.LABEL_LOOKUP;
+        // Time spent in each phase, recorded to the metrics when the launch is over
+        private final Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+        private long phase_started = System.currentTimeMillis();
+        private String definition;
+
+        AquariumCloud cloud;
+        AquariumClient client;
+        Label label;
+        UUID app_uid;
+        ApplicationState state;
+
+        Launch(AquariumComputer comp, AquariumSlave node, TaskListener listener) {
+            this.comp = comp;
+            this.node = node;
+            this.listener = listener;
+        }
+
+        void start() {
+            CompletableFuture<Void> requested;
+            if( node.getApplicationUID() == null ) {
+                requested = async(this::preLaunch)
+                        .thenCompose(v -> async(this::findLabel))
+                        .thenCompose(v -> async(this::createApplication));
+            } else if( node.getPreparedLabel() != null ) {
+                // The Application was created by the cloud during provisioning, its phases are already recorded
+                phase = Phase.ELECTION;
+                requested = async(this::preLaunch).thenCompose(v -> async(this::usePrepared));
+            } else {
+                // The controller was restarted during the launch and the Application is already requested
+                requested = async(this::preLaunch).thenCompose(v -> async(this::resumeApplication));
+            }
+            requested
+                    .thenCompose(v -> waitElection())
+                    .thenCompose(v -> async(this::getResource))
+                    .thenCompose(v -> waitAgent())
+                    .whenCompleteAsync((v, ex) -> {
+                        if( ex == null ) {
+                            complete();
+                        } else {
+                            fail(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                        }
+                    }, Computer.threadPoolForRemoting);
+        }
+
+        Void preLaunch() throws Exception {
+            // The computer connect is not going through the SlaveComputer launch, so notifying the listeners here
+            for( ComputerListener cl : ComputerListener.all() ) {
+                cl.preLaunch(comp, listener);
+            }
+            return null;
+        }
+
+        Void findLabel() throws Exception {
             // Request for resource
-            AquariumCloud cloud = node.getAquariumCloud();
-            AquariumClient client = cloud.getClient();
-            Label label = client.labelFindLatest(node.getLabelString().split(" ")[0]);
+            cloud = node.getAquariumCloud();
+            client = cloud.getClient();
+            label = client.labelFindLatest(node.getAquariumLabel());
+            return null;
+        }
+
+        Void usePrepared() {
+            cloud = node.getAquariumCloud();
+            client = cloud.getClient();
+            label = node.getPreparedLabel();
+            app_uid = node.getApplicationUID();
+            notifyRequested();
+            return null;
+        }
+
+        /**
+         * Finds the label of the Application requested before the restart, the Application is replaced
+         * by the new one if the label is not available anymore
+         */
+        Void resumeApplication() throws Exception {
+            cloud = node.getAquariumCloud();
+            client = cloud.getClient();
+            app_uid = node.getApplicationUID();
+            Integer version = node.getApplicationLabelVersion();
+            if( version != null ) {
+                label = client.labelFind(node.getAquariumLabel()).stream()
+                        .filter(l -> version.equals(l.getVersion())).findFirst().orElse(null);
+            }
+            if( label == null ) {
+                LOG.log(Level.WARNING, "Unable to find label of Application " + app_uid + ", requesting the new one, node:" + comp.getName());
+                DeallocationQueue.get().add(cloud.name, app_uid, node.getNodeName());
+                label = client.labelFindLatest(node.getAquariumLabel());
+                return createApplication();
+            }
+            listener.getLogger().println("Aquarium launch resumed after restart");
+            notifyRequested();
+            return null;
+        }
+
+        Void createApplication() throws Exception {
+            setPhase(Phase.APPLICATION_CREATE);
             Application app = client.applicationCreate(
                     label.getUID(),
                     cloud.getJenkinsUrl(),
+                    cloud.getOwnerMarker(),
                     node.getNodeName(),
                     comp.getJnlpMac(),
                     cloud.getMetadata()
             );
+            app_uid = app.getUID();
 
-            node.setApplicationUID(app.getUID());
+            node.setApplication(app_uid, label);
+            try {
+                // The Application UID need to survive the restart to not request it again
+                node.save();
+            } catch( IOException e ) {
+                LOG.log(Level.WARNING, "Could not save() agent: " + e.getMessage(), e);
+            }
+            notifyRequested();
+            return null;
+        }
 
+        void notifyRequested() {
             // Notify computer log that the request for Application was sent
-            listener.getLogger().println("Aquarium Application was requested: " + app.getUID() + " with Label: " + label.getName() + "#" + label.getVersion());
+            listener.getLogger().println("Aquarium Application was requested: " + app_uid + " with Label: " + label.getName() + "#" + label.getVersion());
             JSONObject app_info = new JSONObject();
-            app_info.put("ApplicationUID", app.getUID().toString());
+            app_info.put("ApplicationUID", app_uid.toString());
             app_info.put("LabelName", label.getName());
             app_info.put("LabelVersion", label.getVersion());
             comp.setAppInfo(app_info);
+        }
 
+        CompletableFuture<Void> waitElection() {
             // Wait for fish node election process - it could take a while if there is not enough resources in the pool
-            SlaveComputer slaveComputer;
-            ApplicationState state = null;
-            while( true ) {
-                slaveComputer = node.getComputer();
-                if( slaveComputer == null ) {
-                    throw new IllegalStateException("Node was deleted, computer is null");
+            setPhase(Phase.ELECTION);
+            return cloud.getStatePoller().waitFor(app_uid,
+                    EnumSet.of(ApplicationStatus.NEW, ApplicationStatus.ELECTED), this::isOnline, cloud.getElectionTimeoutMs()
+            ).handle((st, ex) -> {
+                if( ex != null ) {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    if( cause instanceof TimeoutException ) {
+                        // The definitions of the label are busy - trying the previous version of the label
+                        return async(this::fallback).thenCompose(v -> waitElection());
+                    }
+                    throw new CompletionException(cause);
                 }
-                if( slaveComputer.isOnline() ) {
-                    break;
+                state = st;
+                if( st != null && st.getStatus() != ApplicationStatus.ALLOCATED ) {
+                    // Resource launch failed
+                    LOG.log(Level.WARNING, "Unable to get resource from pool:" + st.getDescription() + ", node:" + comp.getName());
+                    throw new IllegalStateException("Unable to get resource from pool, status:" + st.toString());
                 }
+                return CompletableFuture.<Void>completedFuture(null);
+            }).thenCompose(f -> f);
+        }
 
-                // Check that the resource hasn't failed already
-                try {
-                    state = client.applicationStateGet(app.getUID());
-                    if( state.getStatus() == ApplicationStatus.ALLOCATED ) {
-                        break;
-                    } else if( state.getStatus() != ApplicationStatus.ELECTED && state.getStatus() != ApplicationStatus.NEW) {
-                        // Resource launch failed
-                        LOG.log(Level.WARNING, "Unable to get resource from pool:" + state.getDescription() + ", node:" + comp.getName());
-                        break;
-                    }
-                } catch( ApiException e ) {
-                    LOG.log(Level.WARNING, "Error happened during API request:" + e + ", node:" + comp.getName());
-                }
+        /**
+         * Deallocates the Application stalled in election and requests the new one with the previous label version
+         */
+        Void fallback() throws Exception {
+            String msg = "Aquarium Application " + app_uid + " was not elected in time with Label: " +
+                    label.getName() + "#" + label.getVersion();
+            LOG.log(Level.WARNING, msg + ", node:" + comp.getName());
+            listener.getLogger().println(msg);
+
+            try {
+                client.applicationDeallocate(app_uid);
+            } catch( Exception e ) {
+                // The queue will retry until the cluster will process it
+                DeallocationQueue.get().add(cloud.name, app_uid, node.getNodeName());
+            }
 
-                Thread.sleep(5000);
+            Label prev = client.labelFind(label.getName()).stream()
+                    .filter(l -> l.getVersion() < label.getVersion())
+                    .max(Comparator.comparing(Label::getVersion)).orElse(null);
+            if( prev == null ) {
+                AquariumMetrics.ELECTION_TIMEOUTS.add(1, label.getName(), "failed");
+                // The build will return to the queue and could be provisioned by another cloud
+                throw new IllegalStateException("Election timeout and no previous version of Label " + label.getName());
             }
+            AquariumMetrics.ELECTION_TIMEOUTS.add(1, label.getName(), "fallback");
+            listener.getLogger().println("Falling back to Label: " + prev.getName() + "#" + prev.getVersion());
+            label = prev;
+            return createApplication();
+        }
 
+        Void getResource() throws Exception {
             // Print to the computer log about the LabelDefinition was chosen
-            Resource res = client.applicationResourceGet(app.getUID());
+            setPhase(Phase.RESOURCE_LOOKUP);
+            Resource res = client.applicationResourceGet(app_uid);
+            definition = String.valueOf(res.getDefinitionIndex());
             listener.getLogger().println("Aquarium LabelDefinition: " + label.getDefinitions().get(res.getDefinitionIndex()));
             // Tell computer to know where it runs
             comp.setDefinitionInfo(JSONObject.fromObject(label.getDefinitions().get(res.getDefinitionIndex())));
+            return null;
+        }
 
+        CompletableFuture<Void> waitAgent() {
             // Wait for agent connection for 10 minutes
-            int wait_agent_connect = 120; // 120 * 5 - status_call_time >= 10 mins
-            for( int waited_for_agent = 0; waited_for_agent < wait_agent_connect; waited_for_agent++ ) {
-                slaveComputer = node.getComputer();
-                if( slaveComputer == null ) {
-                    throw new IllegalStateException("Node was deleted, computer is null");
+            setPhase(Phase.AGENT_CONNECT);
+            return cloud.getStatePoller().waitFor(app_uid,
+                    EnumSet.of(ApplicationStatus.ALLOCATED), this::isOnline, AGENT_CONNECT_TIMEOUT
+            ).handle((st, ex) -> {
+                if( ex != null ) {
+                    LOG.log(Level.WARNING, "Agent did not connected in time, node:" + comp.getName());
+                } else if( st != null ) {
+                    state = st;
+                    LOG.log(Level.WARNING, "Agent did not connected:" + st.getDescription() + ", node:" + comp.getName());
                 }
-                if( slaveComputer.isOnline() ) {
-                    break;
+                if( !isOnline() ) {
+                    throw new IllegalStateException("Agent is not connected, status:" + state);
                 }
+                return null;
+            });
+        }
 
-                // Check that the resource hasn't failed already
-                try {
-                    state = client.applicationStateGet(app.getUID());
-                    if( state.getStatus() != ApplicationStatus.ALLOCATED ) {
-                        LOG.log(Level.WARNING, "Agent did not connected:" + state.getDescription() + ", node:" + comp.getName());
-                        break;
-                    }
-                } catch( ApiException e ) {
-                    LOG.log(Level.WARNING, "Error happened during API request:" + e + ", node:" + comp.getName());
-                }
+        synchronized void setPhase(Phase next) {
+            long now = System.currentTimeMillis();
+            durations.merge(phase, now - phase_started, Long::sum);
+            phase_started = now;
+            phase = next;
+        }
 
-                Thread.sleep(5000);
+        synchronized void recordMetrics() {
+            String label_name = node.getAquariumLabel();
+            for( Map.Entry<Phase, Long> entry : durations.entrySet() ) {
+                AquariumMetrics.LAUNCH_PHASE.observe(entry.getValue(), label_name, definition, entry.getKey().name());
             }
-
-            if( slaveComputer.isOffline() ) {
-                if( node != null ) {
-                    // Clean up
-                    node.terminate();
+            if( node.getCreatedAt() > 0 ) {
+                long total = System.currentTimeMillis() - node.getCreatedAt();
+                AquariumMetrics.LAUNCH_TOTAL.observe(total, label_name, definition, phase == Phase.ONLINE ? "online" : "failed");
+                // The failed launch is a lost time too, so it's slowing down the cloud as well
+                if( cloud != null ) {
+                    cloud.recordAllocation(total);
                 }
-                throw new IllegalStateException("Agent is not connected, status:" + state.toString());
             }
+        }
+
+        boolean isOnline() {
+            SlaveComputer computer = node.getComputer();
+            if( computer == null ) {
+                throw new IllegalStateException("Node was deleted, computer is null");
+            }
+            return computer.isOnline();
+        }
+
+        void complete() {
+            setPhase(Phase.ONLINE);
+            recordMetrics();
 
             // Set up the retention strategy to destroy the node when it's completed processes, idle will initiate the
-            // agent termination if no workload was assigned to it.
-            node.setRetentionStrategy(new OnceRetentionStrategy(5));
+            // agent termination if no workload was assigned to it. The reused agent is kept between the builds and
+            // terminated by the computer when it reaches the limits.
+            if( node.isReuse() ) {
+                node.setRetentionStrategy(new CloudRetentionStrategy(node.getIdleMinutes()));
+            } else {
+                node.setRetentionStrategy(new OnceRetentionStrategy(node.getIdleMinutes()));
+            }
 
-            computer.setAcceptingTasks(true);
-            launched = true;
+            comp.setAcceptingTasks(true);
+            synchronized( AquariumLauncher.this ) {
+                launched = true;
+                launching = null;
+            }
 
             try {
                 node.save(); // We need to persist the "launched" setting...
             } catch( IOException e ) {
                 LOG.log(Level.WARNING, "Could not save() agent: " + e.getMessage(), e);
             }
-        } catch (Throwable ex) {
+            done.complete(null);
+        }
+
+        void fail(Throwable ex) {
+            LOG.log(Level.WARNING, String.format("Error in provisioning during %s; agent=%s", phase, node), ex);
+            setPhase(Phase.FAILED);
+            recordMetrics();
             setProblem(ex);
-            LOG.log(Level.WARNING, String.format("Error in provisioning; agent=%s", node), ex);
+            Functions.printStackTrace(ex, listener.error("Aquarium launch failed"));
+            comp.launchFailed(listener);
             LOG.log(Level.FINER, "Removing Jenkins node: {0}", node.getNodeName());
             try {
                 node.terminate();
             } catch (IOException | InterruptedException e) {
                 LOG.log(Level.WARNING, "Unable to remove Jenkins node", e);
             }
-            throw Throwables.propagate(ex);
+            synchronized( AquariumLauncher.this ) {
+                launching = null;
+            }
+            done.completeExceptionally(ex);
         }
     }
 
+    /**
+     * Runs the blocking request in the remoting thread pool
+     */
+    private static <T> CompletableFuture<T> async(Callable<T> fn) {
+        CompletableFuture<T> out = new CompletableFuture<>();
+        Computer.threadPoolForRemoting.execute(() -> {
+            try {
+                out.complete(fn.call());
+            } catch( Throwable e ) {
+                out.completeExceptionally(e);
+            }
+        });
+        return out;
+    }
+
     @CheckForNull
     public Throwable getProblem() {
         return problem;
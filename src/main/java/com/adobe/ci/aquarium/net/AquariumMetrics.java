@@ -0,0 +1,237 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead in-memory metrics of the Aquarium provisioning, exposed in the Prometheus text format
+ * on JENKINS_URL/aquarium-metrics/ for the administrators.
+ */
+@Extension
+public class AquariumMetrics implements RootAction {
+
+    private static final List<Metric<?>> METRICS = new CopyOnWriteArrayList<>();
+
+    // Time spent by the agent launch in each phase
+    static final Histogram LAUNCH_PHASE = register(new Histogram("aquarium_launch_phase_seconds",
+            "Duration of the Aquarium agent launch phases", "label", "definition", "phase"));
+    // Time from the agent creation by the cloud till it's online or failed
+    static final Histogram LAUNCH_TOTAL = register(new Histogram("aquarium_launch_seconds",
+            "Duration from the Aquarium agent creation till it's online", "label", "definition", "result"));
+    // Time from the agent termination till the Application is deallocated
+    static final Histogram TERMINATION = register(new Histogram("aquarium_termination_seconds",
+            "Duration from the Aquarium agent termination till the Application deallocation", "cloud", "result"));
+
+    // Applications not elected in time and the action taken
+    static final Counter ELECTION_TIMEOUTS = register(new Counter("aquarium_election_timeouts_total",
+            "Amount of the Aquarium Applications not elected in time", "label", "result"));
+
+    // Provisioning throughput and the time the builds are waiting for the agents
+    static final Counter AGENTS_PROVISIONED = register(new Counter("aquarium_agents_provisioned_total",
+            "Amount of the Aquarium agents planned by the clouds", "label"));
+    static final Histogram QUEUE_WAIT = register(new Histogram("aquarium_queue_wait_seconds",
+            "Duration from the item entering the queue till it's started on the Aquarium agent", "label"));
+    // Provisioner reviews requested by the items entering the queue, coalesced per label
+    static final Counter FAST_PROVISIONING_REVIEWS = register(new Counter("aquarium_fast_provisioning_reviews_total",
+            "Amount of the provisioner reviews requested by the items entering the queue", "label"));
+
+    // Fish API requests by the plugin clients
+    static final Counter API_REQUESTS = register(new Counter("aquarium_api_requests_total",
+            "Amount of the Aquarium Fish API requests", "cloud", "operation", "code"));
+    static final Histogram API_LATENCY = register(new Histogram("aquarium_api_request_seconds",
+            "Duration of the Aquarium Fish API requests", "cloud", "operation"));
+    static final Counter API_BYTES_OUT = register(new Counter("aquarium_api_request_bytes_total",
+            "Size of the Aquarium Fish API request bodies", "cloud", "operation"));
+    static final Counter API_BYTES_IN = register(new Counter("aquarium_api_response_bytes_total",
+            "Size of the Aquarium Fish API response bodies", "cloud", "operation"));
+    static final Counter API_RETRIES = register(new Counter("aquarium_api_retries_total",
+            "Amount of the Aquarium Fish API requests repeated on another node", "cloud", "operation"));
+
+    // Upper bounds of the buckets in seconds
+    private static final double[] BUCKETS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500};
+
+    private static <T extends Metric<?>> T register(T metric) {
+        METRICS.add(metric);
+        return metric;
+    }
+
+    /**
+     * Named metric, each set of the label values is a separated series
+     */
+    abstract static class Metric<S> {
+        final String name;
+        final String help;
+        final String[] labelNames;
+        final ConcurrentHashMap<List<String>, S> series = new ConcurrentHashMap<>();
+
+        Metric(String name, String help, String... labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+
+        abstract S create();
+
+        S get(String... labelValues) {
+            List<String> key = new ArrayList<>(labelNames.length);
+            for( int i = 0; i < labelNames.length; i++ ) {
+                key.add(i < labelValues.length && labelValues[i] != null ? labelValues[i] : "");
+            }
+            return series.computeIfAbsent(key, k -> create());
+        }
+
+        abstract void write(PrintWriter out);
+
+        String formatLabels(List<String> values) {
+            StringBuilder sb = new StringBuilder();
+            for( int i = 0; i < labelNames.length; i++ ) {
+                if( i > 0 )
+                    sb.append(',');
+                sb.append(labelNames[i]).append("=\"").append(escape(values.get(i))).append('"');
+            }
+            return sb.toString();
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    /**
+     * Monotonic counter
+     */
+    static class Counter extends Metric<LongAdder> {
+        Counter(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        @Override
+        LongAdder create() {
+            return new LongAdder();
+        }
+
+        void add(long value, String... labelValues) {
+            get(labelValues).add(value);
+        }
+
+        @Override
+        void write(PrintWriter out) {
+            out.printf(Locale.ROOT, "# HELP %s %s%n", name, help);
+            out.printf(Locale.ROOT, "# TYPE %s counter%n", name);
+            for( Map.Entry<List<String>, LongAdder> entry : series.entrySet() ) {
+                out.printf(Locale.ROOT, "%s{%s} %d%n", name, formatLabels(entry.getKey()), entry.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * Histogram with fixed buckets
+     */
+    static class Histogram extends Metric<Series> {
+        Histogram(String name, String help, String... labelNames) {
+            super(name, help, labelNames);
+        }
+
+        @Override
+        Series create() {
+            return new Series();
+        }
+
+        /**
+         * Records the duration in ms with the label values in the order of the label names
+         */
+        void observe(long millis, String... labelValues) {
+            get(labelValues).observe(Math.max(0, millis) / 1000.0);
+        }
+
+        @Override
+        void write(PrintWriter out) {
+            out.printf(Locale.ROOT, "# HELP %s %s%n", name, help);
+            out.printf(Locale.ROOT, "# TYPE %s histogram%n", name);
+            for( Map.Entry<List<String>, Series> entry : series.entrySet() ) {
+                String labels = formatLabels(entry.getKey());
+                Series s = entry.getValue();
+                long cumulative = 0;
+                for( int i = 0; i < BUCKETS.length; i++ ) {
+                    cumulative += s.buckets[i].sum();
+                    out.printf(Locale.ROOT, "%s_bucket{%s,le=\"%s\"} %d%n", name, labels, BUCKETS[i], cumulative);
+                }
+                out.printf(Locale.ROOT, "%s_bucket{%s,le=\"+Inf\"} %d%n", name, labels, s.count.sum());
+                out.printf(Locale.ROOT, "%s_sum{%s} %s%n", name, labels, s.sum.sum());
+                out.printf(Locale.ROOT, "%s_count{%s} %d%n", name, labels, s.count.sum());
+            }
+        }
+    }
+
+    private static class Series {
+        // Not cumulative, the values above the last bucket are only in the count
+        final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        final LongAdder count = new LongAdder();
+        final DoubleAdder sum = new DoubleAdder();
+
+        Series() {
+            for( int i = 0; i < buckets.length; i++ ) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double seconds) {
+            int idx = Arrays.binarySearch(BUCKETS, seconds);
+            if( idx < 0 )
+                idx = -idx - 1;
+            if( idx < buckets.length )
+                buckets[idx].increment();
+            count.increment();
+            sum.add(seconds);
+        }
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "aquarium-metrics";
+    }
+
+    @SuppressWarnings("unused") // used by stapler
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        try( PrintWriter out = rsp.getWriter() ) {
+            for( Metric<?> metric : METRICS ) {
+                metric.write(out);
+            }
+        }
+    }
+}
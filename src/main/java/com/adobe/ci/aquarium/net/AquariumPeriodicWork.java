@@ -0,0 +1,74 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background maintenance of the Aquarium clouds, keeps the provisioning hot path free from the
+ * cluster requests.
+ */
+@Extension
+public class AquariumPeriodicWork extends AsyncPeriodicWork {
+
+    private static final Logger LOG = Logger.getLogger(AquariumPeriodicWork.class.getName());
+
+    public AquariumPeriodicWork() {
+        super("Aquarium clouds maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        // In case the clouds were replaced without saving the Jenkins configuration
+        AquariumCloud.releaseReplacedClients();
+
+        for( Cloud c : Jenkins.get().clouds ) {
+            if( !(c instanceof AquariumCloud) )
+                continue;
+            AquariumCloud cloud = (AquariumCloud) c;
+
+            // Update the labels before they will expire to never make the provisioning wait for them
+            try {
+                AquariumCloud.LabelsCache cache = cloud.getLabelsCache();
+                if( cache == null || cache.expires - getRecurrencePeriod() < System.currentTimeMillis() ) {
+                    cloud.updateLabelsCache();
+                }
+            } catch( Exception e ) {
+                LOG.log(Level.WARNING, "Unable to update labels of cloud " + cloud.name + ": " + e.getMessage());
+            }
+
+            cloud.replenishWarmPools();
+
+            try {
+                cloud.getReconciler().reconcile();
+            } catch( Exception e ) {
+                LOG.log(Level.WARNING, "Unable to reconcile Applications of cloud " + cloud.name + ": " + e.getMessage());
+            }
+        }
+
+        NoDelayProvisionerStrategy.saveDemandHistory();
+    }
+}
@@ -12,9 +12,7 @@
 
 package com.adobe.ci.aquarium.net;
 
-import com.adobe.ci.aquarium.fish.client.ApiException;
-import com.adobe.ci.aquarium.fish.client.model.ApplicationState;
-import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import com.adobe.ci.aquarium.fish.client.model.Label;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -55,12 +53,29 @@ public class AquariumSlave extends AbstractCloudSlave {
             .getInteger(AquariumSlave.class.getName() + ".disconnectionTimeout", 5);
 
     private static final long serialVersionUID = -8642936855413034232L;
-    private static final String DEFAULT_AGENT_PREFIX = "fish";
+    static final String DEFAULT_AGENT_PREFIX = "fish";
+    private static final int DEFAULT_IDLE_MINUTES = 5;
 
     private final String cloudName;
     private transient Set<Queue.Executable> executables = new HashSet<>();
 
     private UUID application_uid;
+    // Version of the label the Application was requested with, allows to resume the launch after restart
+    private Integer application_label_version;
+
+    // Pre-allocated by the warm pool and not took any task yet
+    private boolean warm;
+    // How long the agent could stay idle before termination
+    private int idleMinutes;
+    // Reuse mode: max amount of builds (1 or less - single build) and lifetime in minutes (0 - unlimited)
+    private int maxBuilds;
+    private int maxLifetime;
+
+    // Time when the agent was created by the cloud, used to measure the launch latency
+    private long createdAt;
+
+    // Label of the Application created by the cloud during provisioning
+    private transient Label preparedLabel;
 
     protected AquariumSlave(String name, String nodeDescription, String cloudName, String labelStr,
                             ComputerLauncher computerLauncher) throws Descriptor.FormException, IOException {
@@ -69,16 +84,81 @@ public class AquariumSlave extends AbstractCloudSlave {
         this.setNumExecutors(1);
         this.setLabelString(labelStr);
         this.cloudName = cloudName;
+        this.createdAt = System.currentTimeMillis();
     }
 
     public String getCloudName() {
         return cloudName;
     }
 
+    public long getCreatedAt() {
+        return this.createdAt;
+    }
+
+    @CheckForNull
+    public Label getPreparedLabel() {
+        return this.preparedLabel;
+    }
+
+    public void setPreparedLabel(Label label) {
+        this.preparedLabel = label;
+    }
+
     public UUID getApplicationUID() {
         return this.application_uid;
     }
 
+    @CheckForNull
+    public Integer getApplicationLabelVersion() {
+        return this.application_label_version;
+    }
+
+    /**
+     * Returns the Aquarium label the agent was requested for, it's always first in the labels list
+     */
+    public String getAquariumLabel() {
+        return getLabelString().split(" ")[0];
+    }
+
+    public boolean isWarm() {
+        return this.warm;
+    }
+
+    public void setWarm(boolean warm) {
+        this.warm = warm;
+    }
+
+    public int getIdleMinutes() {
+        return this.idleMinutes > 0 ? this.idleMinutes : DEFAULT_IDLE_MINUTES;
+    }
+
+    public void setIdleMinutes(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    public int getMaxBuilds() {
+        return this.maxBuilds;
+    }
+
+    public void setMaxBuilds(int maxBuilds) {
+        this.maxBuilds = maxBuilds;
+    }
+
+    public int getMaxLifetime() {
+        return this.maxLifetime;
+    }
+
+    public void setMaxLifetime(int maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * The agent could run more than one build before termination
+     */
+    public boolean isReuse() {
+        return this.maxBuilds > 1;
+    }
+
     @Override
     public String getRemoteFS() {
         return Util.fixNull(remoteFS);
@@ -111,6 +191,14 @@ public class AquariumSlave extends AbstractCloudSlave {
         this.application_uid = uid;
     }
 
+    /**
+     * Sets the Application requested for the agent together with the version of its label
+     */
+    public void setApplication(UUID uid, Label label) {
+        this.application_uid = uid;
+        this.application_label_version = label.getVersion();
+    }
+
     private static AquariumCloud getAquariumCloud(String cloudName) {
         Cloud cloud = Jenkins.get().getCloud(cloudName);
         if (cloud instanceof AquariumCloud) {
@@ -148,18 +236,17 @@ public class AquariumSlave extends AbstractCloudSlave {
             String msg = String.format("Computer for agent is null: %s", this.name);
             LOG.log(Level.SEVERE, msg);
             listener.fatalError(msg);
-            return;
-        }
-
-        // Tell the slave to stop JNLP reconnects.
-        VirtualChannel ch = computer.getChannel();
-        if (ch != null) {
-            Future<Void> disconnectorFuture = ch.callAsync(new SlaveDisconnector());
-            try {
-                disconnectorFuture.get(DISCONNECTION_TIMEOUT, TimeUnit.SECONDS);
-            } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                String msg = String.format("Ignoring error sending order to not reconnect agent %s: %s", this.name, e.getMessage());
-                LOG.log(Level.INFO, msg, e);
+        } else {
+            // Tell the slave to stop JNLP reconnects.
+            VirtualChannel ch = computer.getChannel();
+            if (ch != null) {
+                Future<Void> disconnectorFuture = ch.callAsync(new SlaveDisconnector());
+                try {
+                    disconnectorFuture.get(DISCONNECTION_TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    String msg = String.format("Ignoring error sending order to not reconnect agent %s: %s", this.name, e.getMessage());
+                    LOG.log(Level.INFO, msg, e);
+                }
             }
         }
 
@@ -170,37 +257,10 @@ public class AquariumSlave extends AbstractCloudSlave {
             return;
         }
 
-        // Need to make sure the resource will be deallocated even if there will be some issues with network
-        while( true ) {
-            try {
-                if( this.application_uid != null ) {
-                    ApplicationState state = cloud.getClient().applicationStateGet(this.application_uid);
-                    if (state.getStatus() != ApplicationStatus.ALLOCATED
-                            && state.getStatus() != ApplicationStatus.ELECTED
-                            && state.getStatus() != ApplicationStatus.NEW) {
-                        LOG.log(Level.SEVERE, "The Application is not active: " + state.getStatus());
-                        break;
-                    }
-                    cloud.getClient().applicationDeallocate(this.application_uid);
-                }
-                break;
-            } catch( ApiException e ) {
-                if( e.getCode() == 404 ) {
-                    String msg = String.format("Failed to remove resource from %s for agent %s Application %s: %s.",
-                            getCloudName(), this.name, this.application_uid, e.getMessage());
-                    LOG.log(Level.SEVERE, msg);
-                    break;
-                }
-                String msg = String.format("Failed to remove resource from %s for agent %s Application %s: %s." +
-                        " Repeating...", getCloudName(), this.name, this.application_uid, e.getMessage());
-                LOG.log(Level.SEVERE, msg);
-            } catch( Exception e ) {
-                String msg = String.format("Error during remove resource from %s for agent %s Application %s: %s.",
-                        getCloudName(), this.name, this.application_uid, e);
-                e.printStackTrace(listener.fatalError(msg));
-                LOG.log(Level.SEVERE, msg);
-                break;
-            }
+        // The deallocation queue makes sure the resource will be deallocated even if there will be some
+        // issues with network, and it will be resumed after the controller restart
+        if( this.application_uid != null ) {
+            DeallocationQueue.get().add(getCloudName(), this.application_uid, this.name);
         }
 
         String msg = String.format("Disconnected computer %s", name);
@@ -261,6 +321,10 @@ public class AquariumSlave extends AbstractCloudSlave {
         private List<String> labels = new ArrayList<>();
         private AquariumCloud cloud;
         private ComputerLauncher computerLauncher;
+        private boolean warm;
+        private int idleMinutes;
+        private int maxBuilds;
+        private int maxLifetime;
 
         public Builder name(String name) {
             this.name = name;
@@ -289,14 +353,39 @@ public class AquariumSlave extends AbstractCloudSlave {
             return this;
         }
 
+        public Builder warm(boolean warm) {
+            this.warm = warm;
+            return this;
+        }
+
+        public Builder idleMinutes(int idleMinutes) {
+            this.idleMinutes = idleMinutes;
+            return this;
+        }
+
+        public Builder maxBuilds(int maxBuilds) {
+            this.maxBuilds = maxBuilds;
+            return this;
+        }
+
+        public Builder maxLifetime(int maxLifetime) {
+            this.maxLifetime = maxLifetime;
+            return this;
+        }
+
         public AquariumSlave build() throws IOException, Descriptor.FormException {
             Validate.notNull(cloud);
-            return new AquariumSlave(
+            AquariumSlave agent = new AquariumSlave(
                     name == null ? getSlaveName() : name,
                     nodeDescription == null ? "Aquarium agent" : nodeDescription,
                     cloud.getName(),
                     labels == null ? "no_label_provided" : String.join(" ", labels),
                     computerLauncher == null ? defaultLauncher() : computerLauncher);
+            agent.setWarm(warm);
+            agent.setIdleMinutes(idleMinutes);
+            agent.setMaxBuilds(maxBuilds);
+            agent.setMaxLifetime(maxLifetime);
+            return agent;
         }
 
         private AquariumLauncher defaultLauncher() {
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponentially growing delay with jitter, used to request the cluster often at first and back off
+ * over time or on failures without synchronizing the requests of the different agents.
+ */
+class Backoff {
+    private final long initial;
+    private final long max;
+    private final double factor;
+
+    private long delay;
+
+    Backoff(long initial, long max, double factor) {
+        this.initial = initial;
+        this.max = Math.max(initial, max);
+        this.factor = factor;
+        this.delay = initial;
+    }
+
+    /**
+     * Returns the current delay in ms with +-20% jitter and increases it for the next call
+     */
+    synchronized long next() {
+        long out = jitter(delay);
+        delay = Math.min(max, (long) (delay * factor));
+        return out;
+    }
+
+    /**
+     * Returns the delay with +-20% jitter
+     */
+    static long jitter(long delay) {
+        return (long) (delay * (0.8 + ThreadLocalRandom.current().nextDouble() * 0.4));
+    }
+
+    synchronized void reset() {
+        delay = initial;
+    }
+}
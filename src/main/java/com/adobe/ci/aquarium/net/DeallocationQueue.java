@@ -0,0 +1,275 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.ApiException;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationState;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.slaves.Cloud;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamedThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide queue of the Applications to deallocate. The terminated agents are just added to the
+ * queue and the small pool of workers deallocates them in batches with backoff on failures. The queue
+ * is persisted, so the pending deallocations survive the controller restart.
+ */
+public final class DeallocationQueue {
+
+    private static final Logger LOG = Logger.getLogger(DeallocationQueue.class.getName());
+
+    private static final int WORKERS = Integer
+            .getInteger(DeallocationQueue.class.getName() + ".workers", 2);
+    // Max amount of the deallocations dispatched to the workers per second
+    private static final int BATCH_SIZE = Integer
+            .getInteger(DeallocationQueue.class.getName() + ".batchSize", 20);
+    private static final long RETRY_INITIAL = Long
+            .getLong(DeallocationQueue.class.getName() + ".retryInitial", 1000L);
+    private static final long RETRY_MAX = Long
+            .getLong(DeallocationQueue.class.getName() + ".retryMax", 60000L);
+    private static final int MAX_ATTEMPTS = Integer
+            .getInteger(DeallocationQueue.class.getName() + ".maxAttempts", 30);
+
+    private static DeallocationQueue instance;
+
+    /**
+     * Application to deallocate, persisted in the queue file
+     */
+    static class Entry {
+        final String cloudName;
+        final String applicationUID;
+        final String agentName;
+        final long added = System.currentTimeMillis();
+        int attempts;
+
+        transient long nextAttempt;
+        transient boolean inProgress;
+
+        Entry(String cloudName, UUID applicationUID, String agentName) {
+            this.cloudName = cloudName;
+            this.applicationUID = applicationUID.toString();
+            this.agentName = agentName;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("agent %s Application %s on %s", agentName, applicationUID, cloudName);
+        }
+    }
+
+    private final List<Entry> pending = new ArrayList<>();
+    private boolean dirty;
+
+    private final AtomicLong deallocated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private ExecutorService workers;
+
+    private DeallocationQueue() {}
+
+    public static synchronized DeallocationQueue get() {
+        if( instance == null ) {
+            instance = new DeallocationQueue();
+            instance.load();
+            instance.start();
+        }
+        return instance;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @SuppressWarnings("unused") // used by jenkins
+    public static void init() {
+        // Resuming the deallocations left from the previous run
+        get();
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), DeallocationQueue.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void load() {
+        XmlFile file = getFile();
+        if( !file.exists() )
+            return;
+        try {
+            pending.addAll((List<Entry>) file.read());
+            LOG.log(Level.INFO, "Loaded pending Aquarium deallocations: " + pending.size());
+        } catch( IOException | ClassCastException e ) {
+            LOG.log(Level.WARNING, "Unable to load pending Aquarium deallocations", e);
+        }
+    }
+
+    private void save() {
+        List<Entry> to_save;
+        synchronized( this ) {
+            if( !dirty )
+                return;
+            dirty = false;
+            to_save = new ArrayList<>(pending);
+        }
+        try {
+            getFile().write(to_save);
+        } catch( IOException e ) {
+            LOG.log(Level.WARNING, "Unable to save pending Aquarium deallocations", e);
+        }
+    }
+
+    private void start() {
+        workers = Executors.newFixedThreadPool(WORKERS,
+                new NamedThreadFactory(new DaemonThreadFactory(), "Aquarium deallocation"));
+        // Saving the queue is blocking, so it's not executed on the shared Jenkins timer
+        AquariumClient.BACKGROUND.scheduleWithFixedDelay(this::dispatch, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds the Application to deallocate, the Application already in the queue is skipped
+     */
+    public void add(String cloudName, UUID applicationUID, String agentName) {
+        Entry entry = new Entry(cloudName, applicationUID, agentName);
+        synchronized( this ) {
+            for( Entry e : pending ) {
+                if( e.applicationUID.equals(entry.applicationUID) ) {
+                    LOG.log(Level.FINE, "Deallocation is already scheduled for " + e);
+                    return;
+                }
+            }
+            pending.add(entry);
+            dirty = true;
+        }
+        LOG.log(Level.INFO, "Scheduled deallocation of " + entry);
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getDeallocatedCount() {
+        return deallocated.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Sends the batch of the due deallocations to the workers
+     */
+    void dispatch() {
+        List<Entry> batch = new ArrayList<>();
+        boolean changed;
+        synchronized( this ) {
+            changed = dirty;
+            long now = System.currentTimeMillis();
+            for( Entry entry : pending ) {
+                if( batch.size() >= BATCH_SIZE )
+                    break;
+                if( !entry.inProgress && entry.nextAttempt <= now ) {
+                    entry.inProgress = true;
+                    batch.add(entry);
+                }
+            }
+        }
+        for( Entry entry : batch ) {
+            workers.execute(() -> process(entry));
+        }
+        // The queue file is written only if the queue was changed since the last save
+        if( changed )
+            save();
+    }
+
+    private void process(Entry entry) {
+        boolean done;
+        try {
+            done = deallocate(entry);
+        } catch( Exception e ) {
+            LOG.log(Level.SEVERE, "Error during remove resource for " + entry + ": " + e);
+            done = false;
+        }
+
+        synchronized( this ) {
+            entry.inProgress = false;
+            if( done ) {
+                pending.remove(entry);
+                deallocated.incrementAndGet();
+                recordMetrics(entry, "deallocated");
+            } else if( ++entry.attempts >= MAX_ATTEMPTS ) {
+                pending.remove(entry);
+                failed.incrementAndGet();
+                recordMetrics(entry, "failed");
+                LOG.log(Level.SEVERE, String.format("Giving up to remove resource for %s after %d attempts." +
+                        " There may be leftover resources on the Aquarium cluster.", entry, entry.attempts));
+            } else {
+                // Exponential backoff with jitter to not overload the struggling cluster
+                long delay = Math.min(RETRY_MAX, RETRY_INITIAL << Math.min(entry.attempts - 1, 20));
+                entry.nextAttempt = System.currentTimeMillis() + Backoff.jitter(delay);
+            }
+            dirty = true;
+        }
+    }
+
+    private static void recordMetrics(Entry entry, String result) {
+        // The entries loaded from the old queue file have no time
+        if( entry.added > 0 ) {
+            AquariumMetrics.TERMINATION.observe(System.currentTimeMillis() - entry.added, entry.cloudName, result);
+        }
+    }
+
+    /**
+     * Deallocates the Application
+     * @return true if the Application is not active anymore, false if need to retry
+     */
+    private static boolean deallocate(Entry entry) throws Exception {
+        Cloud c = Jenkins.get().getCloud(entry.cloudName);
+        if( !(c instanceof AquariumCloud) ) {
+            LOG.log(Level.SEVERE, String.format("Unable to remove resource for %s: cloud may have been removed." +
+                    " There may be leftover resources on the Aquarium cluster.", entry));
+            return true;
+        }
+        AquariumClient client = ((AquariumCloud) c).getClient();
+        UUID app_uid = UUID.fromString(entry.applicationUID);
+        try {
+            ApplicationState state = client.applicationStateGet(app_uid);
+            if( state.getStatus() != ApplicationStatus.ALLOCATED
+                    && state.getStatus() != ApplicationStatus.ELECTED
+                    && state.getStatus() != ApplicationStatus.NEW ) {
+                LOG.log(Level.INFO, "The Application is not active: " + state.getStatus() + ", " + entry);
+                return true;
+            }
+            client.applicationDeallocate(app_uid);
+            LOG.log(Level.INFO, "Deallocated " + entry);
+            return true;
+        } catch( ApiException e ) {
+            if( e.getCode() == 404 ) {
+                LOG.log(Level.SEVERE, String.format("Failed to remove resource for %s: %s.", entry, e.getMessage()));
+                return true;
+            }
+            LOG.log(Level.SEVERE, String.format("Failed to remove resource for %s: %s. Repeating...", entry, e.getMessage()));
+            return false;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import javax.annotation.CheckForNull;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Predicts the label demand from the recorded history to provision the agents ahead of the bursts.
+ * The forecaster must use only the history up to the provided minute, so it could be evaluated by
+ * replaying the recorded history.
+ */
+abstract class DemandForecaster {
+
+    /**
+     * Returns predicted demand for the minute `now + lead`
+     */
+    abstract double forecast(DemandHistory history, long now, int lead);
+
+    /**
+     * Returns the forecaster by name: "ewma", "seasonal" or null if forecasting is disabled
+     */
+    @CheckForNull
+    static DemandForecaster get(String name) {
+        if( "ewma".equalsIgnoreCase(name) ) {
+            return new Ewma();
+        } else if( "seasonal".equalsIgnoreCase(name) ) {
+            return new Seasonal();
+        }
+        return null;
+    }
+
+    /**
+     * Double exponential smoothing (EWMA of the level and the trend) of the recent minutes
+     */
+    static class Ewma extends DemandForecaster {
+        private static final int WINDOW = 60;
+        private static final double ALPHA = 0.3;
+        private static final double BETA = 0.1;
+
+        @Override
+        double forecast(DemandHistory history, long now, int lead) {
+            long from = Math.max(history.getFirstMinute(), now - WINDOW);
+            if( from > now )
+                return 0;
+            double level = history.get(from);
+            double trend = 0;
+            for( long m = from + 1; m <= now; m++ ) {
+                double prev = level;
+                level = ALPHA * history.get(m) + (1 - ALPHA) * (level + trend);
+                trend = BETA * (level - prev) + (1 - BETA) * trend;
+            }
+            return Math.max(0, level + lead * trend);
+        }
+    }
+
+    /**
+     * Takes the demand of the same time of the previous day (merge trains, nightly fan-outs) and
+     * falls back to EWMA when the history is not long enough or the recent demand is higher
+     */
+    static class Seasonal extends DemandForecaster {
+        private static final long PERIOD = 24 * 60;
+        // Minutes around the target time in the previous period to catch a bit shifted bursts
+        private static final int SPREAD = 2;
+
+        private final Ewma ewma = new Ewma();
+
+        @Override
+        double forecast(DemandHistory history, long now, int lead) {
+            long target = now + lead - PERIOD;
+            int seasonal = 0;
+            for( long m = target - SPREAD; m <= target + SPREAD && m <= now; m++ ) {
+                seasonal = Math.max(seasonal, history.get(m));
+            }
+            return Math.max(seasonal, ewma.forecast(history, now, lead));
+        }
+    }
+
+    /**
+     * Replays the history and returns the mean absolute error of the forecaster
+     */
+    static double evaluate(DemandForecaster forecaster, DemandHistory history, int lead) {
+        double error = 0;
+        long count = 0;
+        for( long m = history.getFirstMinute(); m + lead <= history.getLastMinute(); m++ ) {
+            error += Math.abs(forecaster.forecast(history, m, lead) - history.get(m + lead));
+            count++;
+        }
+        return count > 0 ? error / count : 0;
+    }
+
+    /**
+     * Offline evaluation of the forecasters on the recorded demand history
+     * Usage: DemandForecaster <history.csv> [lead_minutes]
+     */
+    public static void main(String[] args) throws IOException {
+        if( args.length < 1 ) {
+            System.err.println("Usage: DemandForecaster <history.csv> [lead_minutes]");
+            System.exit(1);
+        }
+        int lead = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Map<String, DemandHistory> histories;
+        try( BufferedReader reader = new BufferedReader(new FileReader(args[0])) ) {
+            histories = DemandHistory.read(reader);
+        }
+        for( Map.Entry<String, DemandHistory> entry : new TreeMap<>(histories).entrySet() ) {
+            for( String name : new String[]{"ewma", "seasonal"} ) {
+                System.out.println(String.format("%s\t%s\tMAE=%.3f", entry.getKey(), name,
+                        evaluate(get(name), entry.getValue(), lead)));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-minute history of the queue demand for one label, stores the max demand seen in each minute
+ * in the ring buffer of the limited size.
+ */
+class DemandHistory {
+    static final long MINUTE = 60000L;
+    // Two days to allow the daily seasonal forecasting
+    static final int DEFAULT_SIZE = 2 * 24 * 60;
+
+    private final int[] buckets;
+    // Last minute (since epoch) recorded in the history, -1 if empty
+    private long last_minute = -1;
+    private long first_minute = -1;
+
+    DemandHistory(int minutes) {
+        this.buckets = new int[minutes];
+    }
+
+    synchronized void record(long time, int demand) {
+        long minute = time / MINUTE;
+        if( last_minute < 0 ) {
+            first_minute = minute;
+            last_minute = minute;
+        }
+        if( minute < last_minute - buckets.length + 1 )
+            return; // Too old to record
+        // Clean up the skipped minutes, after the long pause (like restart) the whole buffer at most
+        for( long m = Math.max(last_minute + 1, minute - buckets.length + 1); m <= minute; m++ ) {
+            buckets[(int) (m % buckets.length)] = 0;
+        }
+        if( minute > last_minute ) {
+            last_minute = minute;
+        }
+        int idx = (int) (minute % buckets.length);
+        buckets[idx] = Math.max(buckets[idx], demand);
+    }
+
+    /**
+     * Returns the demand for the minute or 0 if it's not in the history
+     */
+    synchronized int get(long minute) {
+        if( last_minute < 0 || minute > last_minute || minute < getFirstMinute() )
+            return 0;
+        return buckets[(int) (minute % buckets.length)];
+    }
+
+    synchronized long getFirstMinute() {
+        return Math.max(first_minute, last_minute - buckets.length + 1);
+    }
+
+    synchronized long getLastMinute() {
+        return last_minute;
+    }
+
+    int size() {
+        return buckets.length;
+    }
+
+    /**
+     * Writes the histories in CSV format: label,minute,demand (only non-zero minutes)
+     */
+    static void write(Writer writer, Map<String, DemandHistory> histories) throws IOException {
+        for( Map.Entry<String, DemandHistory> entry : histories.entrySet() ) {
+            DemandHistory history = entry.getValue();
+            for( long m = history.getFirstMinute(); m <= history.getLastMinute(); m++ ) {
+                int demand = history.get(m);
+                if( demand > 0 ) {
+                    writer.write(entry.getKey().replace(",", " ") + "," + m + "," + demand + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the histories written by {@link #write(Writer, Map)}
+     */
+    static Map<String, DemandHistory> read(BufferedReader reader) throws IOException {
+        Map<String, DemandHistory> out = new HashMap<>();
+        String line = reader.readLine();
+        while( line != null ) {
+            String[] line_sep = line.split(",");
+            if( line_sep.length == 3 ) {
+                out.computeIfAbsent(line_sep[0], k -> new DemandHistory(DEFAULT_SIZE))
+                        .record(Long.parseLong(line_sep[1]) * MINUTE, Integer.parseInt(line_sep[2]));
+            }
+            line = reader.readLine();
+        }
+        return out;
+    }
+}
@@ -16,22 +16,42 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.util.FormValidation;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
+import javax.annotation.CheckForNull;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class LabelMapping extends AbstractDescribableImpl<LabelMapping> implements Serializable {
+    private static final Logger LOG = Logger.getLogger(LabelMapping.class.getName());
+
     private String pattern;
     private String labels;
 
+    // Reuse policy of the matching agents, the agent runs just one build by default
+    private int maxBuilds;
+    private int maxLifetime;
+    private int idleMinutes;
+
+    // Compiled once when the mapping is configured or loaded
+    private transient Pattern compiled;
+
     @DataBoundConstructor
     public LabelMapping(String pattern, String labels) {
         this.pattern = pattern;
         this.labels = labels;
+        this.compiled = compile(pattern);
     }
 
     public String getPattern() {
@@ -40,6 +60,30 @@ public class LabelMapping extends AbstractDescribableImpl<LabelMapping> implemen
 
     public void setPattern(String pattern) {
         this.pattern = pattern;
+        this.compiled = compile(pattern);
+    }
+
+    protected Object readResolve() {
+        this.compiled = compile(this.pattern);
+        return this;
+    }
+
+    @CheckForNull
+    private static Pattern compile(String pattern) {
+        try {
+            return Pattern.compile(pattern);
+        } catch( PatternSyntaxException | NullPointerException e ) {
+            LOG.log(Level.WARNING, "Invalid label mapping pattern: " + pattern);
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the label is matching the mapping pattern, the invalid pattern matches nothing
+     */
+    boolean matches(String label) {
+        Pattern p = this.compiled;
+        return p != null && p.matcher(label).matches();
     }
 
     public String getLabels() {
@@ -50,6 +94,40 @@ public class LabelMapping extends AbstractDescribableImpl<LabelMapping> implemen
         this.labels = labels;
     }
 
+    public int getMaxBuilds() {
+        return maxBuilds;
+    }
+
+    @DataBoundSetter
+    public void setMaxBuilds(int maxBuilds) {
+        this.maxBuilds = maxBuilds;
+    }
+
+    public int getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    @DataBoundSetter
+    public void setMaxLifetime(int maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setIdleMinutes(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    /**
+     * Agents of the mapping could run more than one build
+     */
+    boolean isReuse() {
+        return maxBuilds > 1;
+    }
+
     /**
      * Finds all the matching labels for specified label
      */
@@ -57,13 +135,41 @@ public class LabelMapping extends AbstractDescribableImpl<LabelMapping> implemen
     static String getLabels(@NonNull Iterable<LabelMapping> labels, String label) {
         List<String> found_labels = new ArrayList<>();
         for (LabelMapping labelMapping : labels) {
-            if( Pattern.compile(labelMapping.getPattern()).matcher(label).matches() ) {
+            if( labelMapping.matches(label) ) {
                 found_labels.add(labelMapping.getLabels());
             }
         }
         return String.join(" ", found_labels);
     }
 
+    /**
+     * Resolves the labels for the Aquarium labels with the set of mappings and remembers the result,
+     * so the mappings are applied once per Aquarium label no matter how many agents are created
+     */
+    static class Matcher {
+        private final List<LabelMapping> mappings;
+        private final ConcurrentHashMap<String, String> resolved = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Optional<LabelMapping>> reuse = new ConcurrentHashMap<>();
+
+        Matcher(@NonNull List<LabelMapping> mappings) {
+            this.mappings = new ArrayList<>(mappings);
+        }
+
+        @NonNull
+        String getLabels(String label) {
+            return resolved.computeIfAbsent(label, l -> LabelMapping.getLabels(mappings, l));
+        }
+
+        /**
+         * Returns the first matching mapping with reuse policy or null if the agent should run one build
+         */
+        @CheckForNull
+        LabelMapping getReuse(String label) {
+            return reuse.computeIfAbsent(label, l -> mappings.stream()
+                    .filter(m -> m.isReuse() && m.matches(l)).findFirst()).orElse(null);
+        }
+    }
+
     @Extension
     @Symbol("labelMapping")
     public static class DescriptorImpl extends Descriptor<LabelMapping> {
@@ -72,5 +178,15 @@ public class LabelMapping extends AbstractDescribableImpl<LabelMapping> implemen
         public String getDisplayName() {
             return "Label Mapping";
         }
+
+        @SuppressWarnings("unused") // used by jelly
+        public FormValidation doCheckPattern(@QueryParameter String value) {
+            try {
+                Pattern.compile(value);
+            } catch( PatternSyntaxException e ) {
+                return FormValidation.error(e, "Invalid pattern");
+            }
+            return FormValidation.ok();
+        }
     }
 }
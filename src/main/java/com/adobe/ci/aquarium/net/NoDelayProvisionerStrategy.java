@@ -13,6 +13,8 @@
 package com.adobe.ci.aquarium.net;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.Label;
 import hudson.model.LoadStatistics;
 import hudson.model.Queue;
@@ -23,10 +25,22 @@ import hudson.slaves.NodeProvisioner;
 import jenkins.model.Jenkins;
 import jenkins.util.Timer;
 
-import java.util.ArrayList;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +61,18 @@ public class NoDelayProvisionerStrategy extends NodeProvisioner.Strategy {
     private static final boolean DISABLE_NODELAY_PROVISING = Boolean.valueOf(
             System.getProperty("com.adobe.ci.aquarium.net.disableNoDelayProvisioning"));
 
+    // Predictive provisioning: forecaster name ("ewma" or "seasonal"), how many minutes to look ahead
+    // and the max amount of agents to provision ahead of the demand for one label at a time
+    private static final DemandForecaster FORECASTER = DemandForecaster.get(
+            System.getProperty("com.adobe.ci.aquarium.net.forecaster", "none"));
+    private static final int FORECAST_LEAD = Integer.getInteger("com.adobe.ci.aquarium.net.forecastLead", 5);
+    private static final int FORECAST_MAX_AHEAD = Integer.getInteger("com.adobe.ci.aquarium.net.forecastMaxAhead", 10);
+
+    private static final String DEMAND_HISTORY_FILE = "aquarium-demand-history.csv";
+
+    // Demand history by label expression, recorded only if forecasting is enabled
+    private static final Map<String, DemandHistory> demandHistory = new ConcurrentHashMap<>();
+
     @Override
     public NodeProvisioner.StrategyDecision apply(NodeProvisioner.StrategyState strategyState) {
         if (DISABLE_NODELAY_PROVISING) {
@@ -67,26 +93,21 @@ public class NoDelayProvisionerStrategy extends NodeProvisioner.Strategy {
         LOGGER.log(Level.FINE, "Available capacity={0}, currentDemand={1}",
                 new Object[]{availableCapacity, currentDemand});
         if (availableCapacity < currentDemand) {
-            List<Cloud> jenkinsClouds = new ArrayList<>(Jenkins.get().clouds);
-            Collections.shuffle(jenkinsClouds);
-            //Cloud.CloudState cloudState = new Cloud.CloudState(label, strategyState.getAdditionalPlannedCapacity());
-            for (Cloud cloud : jenkinsClouds) {
-                int workloadToProvision = currentDemand - availableCapacity;
-                if (!(cloud instanceof AquariumCloud)) continue;
-                if (!cloud.canProvision(label)) continue;
-                for (CloudProvisioningListener cl : CloudProvisioningListener.all()) {
-                    if (cl.canProvision(cloud, label, workloadToProvision) != null) {
-                        continue;
-                    }
-                }
-                Collection<NodeProvisioner.PlannedNode> plannedNodes = cloud.provision(label, workloadToProvision);
-                LOGGER.log(Level.FINE, "Planned {0} new nodes", plannedNodes.size());
+            // The workload is split between the clouds proportionally to what they can deliver
+            int workloadToProvision = currentDemand - availableCapacity;
+            Map<AquariumCloud, Integer> shares = selectClouds(label, workloadToProvision);
+            for (Map.Entry<AquariumCloud, Integer> share : shares.entrySet()) {
+                Cloud cloud = share.getKey();
+                Collection<NodeProvisioner.PlannedNode> plannedNodes = cloud.provision(label, share.getValue());
+                LOGGER.log(Level.FINE, "Planned {0} new nodes in cloud {1}", new Object[]{plannedNodes.size(), cloud.name});
                 fireOnStarted(cloud, strategyState.getLabel(), plannedNodes);
                 strategyState.recordPendingLaunches(plannedNodes);
                 availableCapacity += plannedNodes.size();
-                LOGGER.log(Level.FINE, "After provisioning, available capacity={0}, currentDemand={1}", new Object[]{availableCapacity, currentDemand});
-                break;
             }
+            LOGGER.log(Level.FINE, "After provisioning, available capacity={0}, currentDemand={1}", new Object[]{availableCapacity, currentDemand});
+        }
+        if (FORECASTER != null && label != null) {
+            availableCapacity += provisionAhead(strategyState, label, currentDemand, availableCapacity);
         }
         if (availableCapacity > previousCapacity && label != null) {
             LOGGER.log(Level.FINE, "Suggesting NodeProvisioner review");
@@ -101,6 +122,120 @@ public class NoDelayProvisionerStrategy extends NodeProvisioner.Strategy {
         }
     }
 
+    /**
+     * Divides the workload between the clouds able to provision the label. Each cloud gets no more than
+     * its free capacity, the rest is shared by weight: the faster the cloud allocates the agents and the
+     * less agents it's launching at the moment - the bigger part of the workload it gets.
+     */
+    static Map<AquariumCloud, Integer> selectClouds(Label label, int workload) {
+        Map<String, AquariumCloud> clouds = new HashMap<>();
+        Map<String, Integer> demands = new HashMap<>();
+        Map<String, Double> weights = new HashMap<>();
+        for (Cloud c : Jenkins.get().clouds) {
+            if (!(c instanceof AquariumCloud) || !c.canProvision(label)) continue;
+            if (isVetoed(c, label, workload)) continue;
+            AquariumCloud cloud = (AquariumCloud) c;
+            List<AquariumSlave> agents = cloud.getAgents();
+            int free = Math.min(workload, cloud.getFreeCapacity(agents));
+            if (free <= 0) continue;
+            double latency = cloud.getAllocationLatency() / 1000.0;
+            int launching = AquariumCloud.getLaunchingCount(agents);
+            clouds.put(cloud.name, cloud);
+            demands.put(cloud.name, free);
+            weights.put(cloud.name, 1.0 / ((latency + 1) * (launching + 1)));
+        }
+
+        Map<AquariumCloud, Integer> out = new LinkedHashMap<>();
+        if (clouds.size() == 1) {
+            // Nothing to split
+            out.put(clouds.values().iterator().next(), workload);
+            return out;
+        }
+        for (Map.Entry<String, Integer> share : ProvisioningLimits.fairShare(workload, demands, weights).entrySet()) {
+            if (share.getValue() > 0) {
+                out.put(clouds.get(share.getKey()), share.getValue());
+            }
+        }
+        LOGGER.log(Level.FINE, "Workload {0} of label {1} is split between the clouds: {2}",
+                new Object[]{workload, label, out});
+        return out;
+    }
+
+    private static boolean isVetoed(Cloud cloud, Label label, int workload) {
+        for (CloudProvisioningListener cl : CloudProvisioningListener.all()) {
+            if (cl.canProvision(cloud, label, workload) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the demand and provisions the agents ahead of the predicted one
+     * @return amount of the planned agents
+     */
+    private static int provisionAhead(NodeProvisioner.StrategyState strategyState, Label label,
+                                      int currentDemand, int availableCapacity) {
+        long now = System.currentTimeMillis();
+        DemandHistory history = demandHistory.computeIfAbsent(label.getExpression(),
+                k -> new DemandHistory(DemandHistory.DEFAULT_SIZE));
+        history.record(now, currentDemand);
+
+        int predicted = (int) Math.ceil(FORECASTER.forecast(history, now / DemandHistory.MINUTE, FORECAST_LEAD));
+        int ahead = Math.min(FORECAST_MAX_AHEAD, predicted - Math.max(availableCapacity, currentDemand));
+        if (ahead <= 0) {
+            return 0;
+        }
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (!(cloud instanceof AquariumCloud) || !cloud.canProvision(label)) continue;
+            Collection<NodeProvisioner.PlannedNode> plannedNodes = ((AquariumCloud) cloud).provisionAhead(label, ahead);
+            LOGGER.log(Level.FINE, "Predicted demand={0}, planned {1} new nodes ahead",
+                    new Object[]{predicted, plannedNodes.size()});
+            fireOnStarted(cloud, label, plannedNodes);
+            strategyState.recordPendingLaunches(plannedNodes);
+            return plannedNodes.size();
+        }
+        return 0;
+    }
+
+    /**
+     * Stores the recorded demand history to the Jenkins root to be able to evaluate the forecasters offline
+     * with {@link DemandForecaster#main(String[])}
+     */
+    static void saveDemandHistory() {
+        if (FORECASTER == null || demandHistory.isEmpty()) {
+            return;
+        }
+        File file = new File(Jenkins.get().getRootDir(), DEMAND_HISTORY_FILE);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            DemandHistory.write(writer, demandHistory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save demand history to " + file, e);
+        }
+    }
+
+    /**
+     * Restores the demand history saved by the previous run, so the seasonal forecaster is not starting
+     * from scratch after the controller restart
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    @SuppressWarnings("unused") // used by jenkins
+    public static void loadDemandHistory() {
+        if (FORECASTER == null) {
+            return;
+        }
+        File file = new File(Jenkins.get().getRootDir(), DEMAND_HISTORY_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            demandHistory.putAll(DemandHistory.read(reader));
+            LOGGER.log(Level.INFO, "Loaded demand history of {0} labels", demandHistory.size());
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Unable to load demand history from " + file, e);
+        }
+    }
+
     private static void fireOnStarted(final Cloud cloud, final Label label,
                                       final Collection<NodeProvisioner.PlannedNode> plannedNodes) {
         for (CloudProvisioningListener cl : CloudProvisioningListener.all()) {
@@ -117,24 +252,49 @@ public class NoDelayProvisionerStrategy extends NodeProvisioner.Strategy {
     }
 
     /**
-     * Ping the nodeProvisioner as a new task enters the queue.
+     * Ping the nodeProvisioner as a new task enters the queue. The signals are coalesced per label within
+     * a short window, so a burst of items produces one label evaluation & provisioner review per label.
      */
     @Extension
     public static class FastProvisioning extends QueueListener {
 
+        private static final long WINDOW = Long.getLong("com.adobe.ci.aquarium.net.fastProvisioningWindow", 100L);
+
+        // Labels waiting for the review by label expression, empty for the unlabeled items
+        private final Map<String, Optional<Label>> pending = new ConcurrentHashMap<>();
+
         @Override
         public void onEnterBuildable(Queue.BuildableItem item) {
             if (DISABLE_NODELAY_PROVISING) {
                 return;
             }
-            final Jenkins jenkins = Jenkins.get();
             final Label label = item.getAssignedLabel();
+            final String key = label == null ? "" : label.getExpression();
+            if (pending.putIfAbsent(key, Optional.ofNullable(label)) != null) {
+                return; // Review is already scheduled for the label
+            }
+            if (WINDOW > 0) {
+                Timer.get().schedule(() -> review(key), WINDOW, TimeUnit.MILLISECONDS);
+            } else {
+                review(key);
+            }
+        }
+
+        private void review(String key) {
+            Optional<Label> entry = pending.remove(key);
+            if (entry == null) {
+                return;
+            }
+            final Jenkins jenkins = Jenkins.get();
+            final Label label = entry.orElse(null);
             for (Cloud cloud : jenkins.clouds) {
                 if (cloud instanceof AquariumCloud && cloud.canProvision(label)) {
                     final NodeProvisioner provisioner = (label == null
                             ? jenkins.unlabeledNodeProvisioner
                             : label.nodeProvisioner);
                     provisioner.suggestReviewNow();
+                    AquariumMetrics.FAST_PROVISIONING_REVIEWS.add(1, key);
+                    return;
                 }
             }
         }
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parsed limits of the cloud agents per Aquarium label and per Jenkins folder, and the weighted
+ * fair-share allocation of the free cloud capacity between the competing labels.
+ */
+class ProvisioningLimits {
+    private static final Logger LOG = Logger.getLogger(ProvisioningLimits.class.getName());
+
+    // Max agents & weight by Aquarium label name
+    private final Map<String, Integer> labelMax = new HashMap<>();
+    private final Map<String, Double> labelWeight = new HashMap<>();
+    // Max running agents by folder full name
+    private final Map<String, Integer> folderMax = new HashMap<>();
+
+    /**
+     * @param labels lines in format: label=max[:weight]
+     * @param folders lines in format: folder/full/name=max
+     */
+    ProvisioningLimits(String labels, String folders) {
+        parse(labels, (key, value) -> {
+            String[] value_sep = value.split(":", 2);
+            labelMax.put(key, Integer.parseInt(value_sep[0].trim()));
+            if( value_sep.length == 2 ) {
+                double weight = Double.parseDouble(value_sep[1].trim());
+                if( weight > 0 ) {
+                    labelWeight.put(key, weight);
+                }
+            }
+        });
+        parse(folders, (key, value) -> folderMax.put(key, Integer.parseInt(value.trim())));
+    }
+
+    private interface LineConsumer {
+        void accept(String key, String value);
+    }
+
+    private static void parse(String config, LineConsumer consumer) {
+        if( config == null || config.isEmpty() )
+            return;
+        try( BufferedReader reader = new BufferedReader(new StringReader(config)) ) {
+            String line = reader.readLine();
+            while( line != null ) {
+                String[] line_sep = line.split("=", 2);
+                if( line_sep.length == 2 ) {
+                    try {
+                        consumer.accept(line_sep[0].trim(), line_sep[1]);
+                    } catch( NumberFormatException e ) {
+                        LOG.log(Level.WARNING, "Skipping invalid limit line: " + line);
+                    }
+                }
+                line = reader.readLine();
+            }
+        } catch( IOException exc ) {
+            // nop
+        }
+    }
+
+    boolean hasFolderLimits() {
+        return !folderMax.isEmpty();
+    }
+
+    /**
+     * Returns max amount of the agents for the label or -1 if unlimited
+     */
+    int getLabelMax(String label) {
+        return labelMax.getOrDefault(label, -1);
+    }
+
+    double getLabelWeight(String label) {
+        return labelWeight.getOrDefault(label, 1.0);
+    }
+
+    /**
+     * Checks the folder and its parents limits with the current usage
+     * @param folder full name of the folder
+     * @param usage amount of the agents used by the folders (not including the subfolders)
+     */
+    boolean isFolderAllowed(String folder, Map<String, Integer> usage) {
+        for( String f = folder; f != null; f = parentOf(f) ) {
+            Integer max = folderMax.get(f);
+            if( max == null )
+                continue;
+            // Summing the usage of the folder with all the subfolders, the root folder contains all of them
+            int used = 0;
+            for( Map.Entry<String, Integer> entry : usage.entrySet() ) {
+                if( f.isEmpty() || entry.getKey().equals(f) || entry.getKey().startsWith(f + "/") ) {
+                    used += entry.getValue();
+                }
+            }
+            if( used >= max )
+                return false;
+        }
+        return true;
+    }
+
+    private static String parentOf(String folder) {
+        if( folder.isEmpty() )
+            return null;
+        int idx = folder.lastIndexOf('/');
+        return idx < 0 ? "" : folder.substring(0, idx);
+    }
+
+    /**
+     * Weighted max-min fair division of the capacity between the demands: each key gets the part of
+     * the capacity proportional to its weight, the part not needed by the satisfied keys is divided
+     * between the rest.
+     */
+    static Map<String, Integer> fairShare(int capacity, Map<String, Integer> demands, Map<String, Double> weights) {
+        Map<String, Integer> out = new HashMap<>();
+        List<String> active = new ArrayList<>();
+        for( Map.Entry<String, Integer> entry : demands.entrySet() ) {
+            out.put(entry.getKey(), 0);
+            if( entry.getValue() > 0 ) {
+                active.add(entry.getKey());
+            }
+        }
+        // Heavier keys first to give them the rounding leftovers
+        active.sort(Comparator.comparingDouble((String k) -> -weights.getOrDefault(k, 1.0)).thenComparing(k -> k));
+
+        while( capacity > 0 && !active.isEmpty() ) {
+            double total_weight = 0;
+            for( String key : active ) {
+                total_weight += weights.getOrDefault(key, 1.0);
+            }
+
+            int given = 0;
+            for( String key : active ) {
+                int share = (int) Math.floor(capacity * weights.getOrDefault(key, 1.0) / total_weight);
+                int give = Math.min(share, demands.get(key) - out.get(key));
+                out.put(key, out.get(key) + give);
+                given += give;
+            }
+            if( given == 0 ) {
+                // Shares are less than one - giving one by one to the heaviest ones
+                for( String key : active ) {
+                    if( given >= capacity )
+                        break;
+                    out.put(key, out.get(key) + 1);
+                    given++;
+                }
+            }
+            capacity -= given;
+            active.removeIf(key -> out.get(key) >= demands.get(key));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.Serializable;
+
+/**
+ * Amount of the pre-allocated idle agents to keep ready for the Aquarium label
+ */
+public class WarmPool extends AbstractDescribableImpl<WarmPool> implements Serializable {
+    private String label;
+    private int minIdle;
+    private int maxIdle;
+    private int idleMinutes;
+
+    @DataBoundConstructor
+    public WarmPool(String label, int minIdle, int maxIdle, int idleMinutes) {
+        this.label = Util.fixEmptyAndTrim(label);
+        this.minIdle = Math.max(0, minIdle);
+        this.maxIdle = Math.max(this.minIdle, maxIdle);
+        this.idleMinutes = Math.max(1, idleMinutes);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @Extension
+    @Symbol("warmPool")
+    public static class DescriptorImpl extends Descriptor<WarmPool> {
+        @Override
+        @NonNull
+        public String getDisplayName() {
+            return "Warm Pool";
+        }
+
+        @SuppressWarnings("unused") // used by jelly
+        public FormValidation doCheckLabel(@QueryParameter String value) {
+            if( Util.fixEmptyAndTrim(value) == null ) {
+                return FormValidation.error("Aquarium label is required");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ApplicationStatePollerTest {
+
+    @Test
+    public void initialIntervalGrowsWithWatchedApplications() {
+        // Few Applications are polled quickly
+        assertEquals(1000, ApplicationStatePoller.initialInterval(1));
+        assertEquals(1000, ApplicationStatePoller.initialInterval(10));
+        // More Applications keep the request rate around the target
+        assertEquals(3000, ApplicationStatePoller.initialInterval(30));
+        // Up to the max initial interval
+        assertEquals(5000, ApplicationStatePoller.initialInterval(50));
+        assertEquals(5000, ApplicationStatePoller.initialInterval(10000));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.ApiException;
+import com.adobe.ci.aquarium.fish.client.model.Application;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import com.adobe.ci.aquarium.fish.client.model.Label;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AquariumClientTest {
+
+    private FishStandIn fish;
+    private AquariumClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        fish = new FishStandIn();
+        client = AquariumClient.forStandIn(fish.getUrl(), "admin", "admin");
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        fish.close();
+    }
+
+    @Test
+    public void findsLatestLabelVersion() throws Exception {
+        fish.addLabel("test-label", 1);
+        Label latest = fish.addLabel("test-label", 3);
+        fish.addLabel("test-label", 2);
+        fish.addLabel("other-label", 5);
+
+        assertEquals(latest.getUID(), client.labelFindLatest("test-label").getUID());
+        assertEquals(3, client.labelFind("test-label").size());
+        assertEquals(4, client.labelGet().size());
+    }
+
+    @Test
+    public void createsApplicationWithMetadata() throws Exception {
+        Label label = fish.addLabel("test-label", 1);
+
+        Application app = client.applicationCreate(label.getUID(), "http://jenkins/", "http://jenkins/#cloud",
+                "fish-agent", "secret", "KEY=value\nbroken");
+
+        assertEquals(1, fish.getApplications().size());
+        JSONObject metadata = JSONObject.fromObject(fish.getApplications().get(0).getMetadata());
+        assertEquals("http://jenkins/", metadata.getString("JENKINS_URL"));
+        assertEquals("http://jenkins/#cloud", metadata.getString(AquariumClient.OWNER_METADATA));
+        assertEquals("fish-agent", metadata.getString("JENKINS_AGENT_NAME"));
+        assertEquals("secret", metadata.getString("JENKINS_AGENT_SECRET"));
+        assertEquals("value", metadata.getString("KEY"));
+        assertEquals(ApplicationStatus.NEW, client.applicationStateGet(app.getUID()).getStatus());
+    }
+
+    @Test
+    public void findsOwnedApplications() throws Exception {
+        Label label = fish.addLabel("test-label", 1);
+        Application owned = client.applicationCreate(label.getUID(), "", "http://jenkins/#cloud-a",
+                "fish-a", "secret", null);
+        client.applicationCreate(label.getUID(), "", "http://jenkins/#cloud-b", "fish-b", "secret", null);
+
+        List<Application> apps = client.applicationFindOwned("http://jenkins/#cloud-a");
+
+        assertEquals(1, apps.size());
+        assertEquals(owned.getUID(), apps.get(0).getUID());
+    }
+
+    @Test
+    public void deallocatesApplication() throws Exception {
+        Label label = fish.addLabel("test-label", 1);
+        Application app = client.applicationCreate(label.getUID(), "", "", "fish-agent", "secret", null);
+
+        client.applicationDeallocate(app.getUID());
+
+        assertEquals(ApplicationStatus.DEALLOCATED, client.applicationStateGet(app.getUID()).getStatus());
+    }
+
+    @Test
+    public void countsFailedRequests() throws Exception {
+        fish.setFailureRate(1.0);
+
+        try {
+            client.labelGet();
+            fail("The request should fail");
+        } catch( ApiException e ) {
+            assertEquals(503, e.getCode());
+        }
+
+        ApiMetricsInterceptor.OperationStats stats = client.getApiStats().stream()
+                .filter(s -> s.getOperation().equals("labelListGet")).findFirst().get();
+        assertEquals(1, stats.getRequests());
+        assertEquals(1, stats.getErrors());
+        assertTrue(fish.getFailureCount() > 0);
+    }
+}
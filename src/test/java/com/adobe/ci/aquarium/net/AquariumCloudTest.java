@@ -0,0 +1,142 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.model.Application;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.slaves.SlaveComputer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AquariumCloudTest {
+
+    private static final Logger LOG = Logger.getLogger(AquariumCloudTest.class.getName());
+
+    private static final String CREDENTIALS_ID = "fish-stand-in";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FishStandIn fish;
+
+    @Before
+    public void setUp() throws Exception {
+        fish = new FishStandIn();
+        fish.addLabel("test-label", 1);
+    }
+
+    @After
+    public void tearDown() {
+        fish.close();
+    }
+
+    /**
+     * Adds the cloud pointed to the stand-in with the labels already received
+     */
+    static AquariumCloud createCloud(JenkinsRule j, FishStandIn fish) throws Exception {
+        SystemCredentialsProvider.getInstance().getCredentials().add(new UsernamePasswordCredentialsImpl(
+                CredentialsScope.GLOBAL, CREDENTIALS_ID, "Fish stand-in", "admin", "admin"));
+        SystemCredentialsProvider.getInstance().save();
+
+        AquariumCloud cloud = new AquariumCloud("aquarium");
+        cloud.setInitHostUrl(fish.getUrl());
+        cloud.setCredentialsId(CREDENTIALS_ID);
+        j.jenkins.clouds.add(cloud);
+        j.jenkins.save();
+        cloud.updateLabelsCache();
+        return cloud;
+    }
+
+    /**
+     * Connects the agent of the allocated Application like the started resource does
+     */
+    static void connectAgent(JenkinsRule j, Application app) {
+        String name = FishStandIn.getAgentName(app);
+        try {
+            // With the pipelined launch the Application is created before the agent is added to Jenkins
+            waitFor(() -> {
+                Node node = j.jenkins.getNode(name);
+                SlaveComputer computer = node instanceof AquariumSlave ? ((AquariumSlave) node).getComputer() : null;
+                return computer != null && computer.getLauncher() instanceof AquariumLauncher
+                        && ((AquariumLauncher) computer.getLauncher()).isLaunching();
+            }, 60000);
+            SlaveComputer computer = ((AquariumSlave) j.jenkins.getNode(name)).getComputer();
+            j.createComputerLauncher(null).launch(computer, computer.getListener());
+        } catch( Exception e ) {
+            LOG.log(Level.WARNING, "Unable to connect agent " + name, e);
+        }
+    }
+
+    static void waitFor(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while( !condition.getAsBoolean() ) {
+            if( System.currentTimeMillis() > deadline )
+                fail("Condition is not reached in " + timeout + "ms");
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void launchesAgentAndDeallocatesAfterBuild() throws Exception {
+        fish.setOnAllocated(app -> connectAgent(j, app));
+        createCloud(j, fish);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedLabel(j.jenkins.getLabel("test-label"));
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        assertTrue(build.getBuiltOnStr().startsWith(AquariumSlave.DEFAULT_AGENT_PREFIX + "-"));
+        List<Application> apps = fish.getApplications();
+        assertEquals(1, apps.size());
+        assertEquals(build.getBuiltOnStr(), FishStandIn.getAgentName(apps.get(0)));
+
+        // The agent is used once, so it's terminated after the build and the Application is deallocated
+        waitFor(() -> j.jenkins.getNode(build.getBuiltOnStr()) == null, 60000);
+        waitFor(() -> fish.getStatus(apps.get(0).getUID()) == ApplicationStatus.DEALLOCATED, 60000);
+    }
+
+    @Test
+    public void removesAgentWhenElectionFails() throws Exception {
+        AquariumCloud cloud = createCloud(j, fish);
+        // Nothing is allocated and there is no previous label version to fall back to
+        fish.setCapacity(0);
+        cloud.setElectionTimeout(1);
+
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedLabel(j.jenkins.getLabel("test-label"));
+        project.scheduleBuild2(0);
+
+        waitFor(() -> fish.getApplications().size() > 0, 60000);
+        Application app = fish.getApplications().get(0);
+        waitFor(() -> fish.getStatus(app.getUID()) == ApplicationStatus.DEALLOCATED, 120000);
+        waitFor(() -> j.jenkins.getNode(FishStandIn.getAgentName(app)) == null, 60000);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+
+    private static void assertJitter(long expected, long actual) {
+        assertTrue("Delay " + actual + " is out of +-20% of " + expected,
+                actual >= expected * 0.8 && actual <= expected * 1.2);
+    }
+
+    @Test
+    public void jitterIsWithinRange() {
+        for( int i = 0; i < 1000; i++ ) {
+            assertJitter(1000, Backoff.jitter(1000));
+        }
+    }
+
+    @Test
+    public void delayGrowsUpToMax() {
+        Backoff backoff = new Backoff(1000, 5000, 2.0);
+
+        assertJitter(1000, backoff.next());
+        assertJitter(2000, backoff.next());
+        assertJitter(4000, backoff.next());
+        assertJitter(5000, backoff.next());
+        assertJitter(5000, backoff.next());
+    }
+
+    @Test
+    public void resetStartsFromInitial() {
+        Backoff backoff = new Backoff(100, 10000, 3.0);
+        backoff.next();
+        backoff.next();
+        backoff.reset();
+
+        assertJitter(100, backoff.next());
+        assertJitter(300, backoff.next());
+    }
+
+    @Test
+    public void maxIsNotLowerThanInitial() {
+        Backoff backoff = new Backoff(1000, 10, 2.0);
+
+        assertJitter(1000, backoff.next());
+        assertJitter(1000, backoff.next());
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DemandForecasterTest {
+
+    private static final long DAY = 24 * 60;
+
+    private static void record(DemandHistory history, long minute, int demand) {
+        history.record(minute * DemandHistory.MINUTE, demand);
+    }
+
+    @Test
+    public void historyKeepsMaxDemandOfMinute() {
+        DemandHistory history = new DemandHistory(10);
+        history.record(100 * DemandHistory.MINUTE, 3);
+        history.record(100 * DemandHistory.MINUTE + 1000, 5);
+        history.record(100 * DemandHistory.MINUTE + 2000, 2);
+
+        assertEquals(5, history.get(100));
+        assertEquals(100, history.getFirstMinute());
+        assertEquals(100, history.getLastMinute());
+        // Not recorded minutes
+        assertEquals(0, history.get(99));
+        assertEquals(0, history.get(101));
+    }
+
+    @Test
+    public void historyOverwritesOldestMinutes() {
+        DemandHistory history = new DemandHistory(3);
+        for( long m = 10; m < 15; m++ ) {
+            record(history, m, (int) m);
+        }
+
+        assertEquals(12, history.getFirstMinute());
+        assertEquals(14, history.getLastMinute());
+        assertEquals(0, history.get(11));
+        assertEquals(12, history.get(12));
+        assertEquals(14, history.get(14));
+
+        // Too old minute is not recorded
+        record(history, 5, 100);
+        assertEquals(0, history.get(5));
+        assertEquals(12, history.get(12));
+    }
+
+    @Test
+    public void historyCleansSkippedMinutes() {
+        DemandHistory history = new DemandHistory(3);
+        record(history, 10, 5);
+        record(history, 11, 6);
+        // The pause overwrites the bucket of the minute 11 and must not keep its demand
+        record(history, 14, 1);
+
+        assertEquals(0, history.get(12));
+        assertEquals(0, history.get(13));
+        assertEquals(1, history.get(14));
+
+        // Long pause cleans the whole buffer
+        record(history, 1000, 2);
+        assertEquals(998, history.getFirstMinute());
+        assertEquals(0, history.get(998));
+        assertEquals(0, history.get(999));
+        assertEquals(2, history.get(1000));
+    }
+
+    @Test
+    public void historyWriteReadRoundTrip() throws IOException {
+        DemandHistory history = new DemandHistory(DemandHistory.DEFAULT_SIZE);
+        record(history, 1000, 4);
+        record(history, 1001, 0);
+        record(history, 1005, 7);
+        Map<String, DemandHistory> histories = new HashMap<>();
+        histories.put("macos,xcode", history);
+
+        StringWriter writer = new StringWriter();
+        DemandHistory.write(writer, histories);
+        // Only non-zero minutes are written and the separator is removed from the label
+        assertEquals("macos xcode,1000,4\nmacos xcode,1005,7\n", writer.toString());
+
+        Map<String, DemandHistory> out = DemandHistory.read(new BufferedReader(new StringReader(
+                writer.toString() + "broken line\n")));
+        assertEquals(1, out.size());
+        DemandHistory read = out.get("macos xcode");
+        assertEquals(4, read.get(1000));
+        assertEquals(0, read.get(1001));
+        assertEquals(7, read.get(1005));
+        assertEquals(DemandHistory.DEFAULT_SIZE, read.size());
+    }
+
+    @Test
+    public void getForecasterByName() {
+        assertTrue(DemandForecaster.get("ewma") instanceof DemandForecaster.Ewma);
+        assertTrue(DemandForecaster.get("Seasonal") instanceof DemandForecaster.Seasonal);
+        assertNull(DemandForecaster.get("none"));
+        assertNull(DemandForecaster.get(null));
+    }
+
+    @Test
+    public void ewmaFollowsConstantDemand() {
+        DemandHistory history = new DemandHistory(DemandHistory.DEFAULT_SIZE);
+        for( long m = 1000; m <= 1100; m++ ) {
+            record(history, m, 5);
+        }
+
+        assertEquals(5.0, new DemandForecaster.Ewma().forecast(history, 1100, 5), 1e-9);
+    }
+
+    @Test
+    public void ewmaFollowsGrowingDemand() {
+        DemandHistory history = new DemandHistory(DemandHistory.DEFAULT_SIZE);
+        for( long m = 1000; m <= 1060; m++ ) {
+            record(history, m, (int) (m - 1000));
+        }
+
+        double forecast = new DemandForecaster.Ewma().forecast(history, 1060, 5);
+        // The trend pushes the forecast above the smoothed level
+        assertTrue(forecast > new DemandForecaster.Ewma().forecast(history, 1060, 0));
+    }
+
+    @Test
+    public void ewmaWithoutHistory() {
+        DemandHistory history = new DemandHistory(DemandHistory.DEFAULT_SIZE);
+
+        assertEquals(0.0, new DemandForecaster.Ewma().forecast(history, 1000, 5), 0.0);
+    }
+
+    @Test
+    public void seasonalUsesPreviousDayBurst() {
+        DemandHistory history = new DemandHistory(DemandHistory.DEFAULT_SIZE);
+        long now = 2 * DAY;
+        // Nightly burst a day ago, slightly shifted from the target time
+        record(history, now + 5 - DAY + 1, 20);
+        for( long m = now - 60; m <= now; m++ ) {
+            record(history, m, 1);
+        }
+
+        assertEquals(20.0, new DemandForecaster.Seasonal().forecast(history, now, 5), 0.0);
+        assertEquals(1.0, new DemandForecaster.Ewma().forecast(history, now, 5), 1e-9);
+        // Burst out of the spread is not used
+        assertTrue(new DemandForecaster.Seasonal().forecast(history, now + 10, 5) < 20.0);
+    }
+
+    @Test
+    public void evaluateConstantDemand() {
+        DemandHistory history = new DemandHistory(DemandHistory.DEFAULT_SIZE);
+        for( long m = 1000; m <= 1200; m++ ) {
+            record(history, m, 3);
+        }
+
+        assertEquals(0.0, DemandForecaster.evaluate(new DemandForecaster.Ewma(), history, 5), 1e-9);
+        assertEquals(0.0, DemandForecaster.evaluate(new DemandForecaster.Seasonal(), history, 5), 1e-9);
+    }
+}
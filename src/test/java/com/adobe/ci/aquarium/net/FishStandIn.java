@@ -0,0 +1,348 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import com.adobe.ci.aquarium.fish.client.JSON;
+import com.adobe.ci.aquarium.fish.client.model.Application;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationState;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationStatus;
+import com.adobe.ci.aquarium.fish.client.model.ApplicationTask;
+import com.adobe.ci.aquarium.fish.client.model.Label;
+import com.adobe.ci.aquarium.fish.client.model.LabelDefinition;
+import com.adobe.ci.aquarium.fish.client.model.Resource;
+import com.adobe.ci.aquarium.fish.client.model.User;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamedThreadFactory;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * In-process stand-in of the Aquarium Fish cluster for the tests. Serves the part of the API used by
+ * the plugin, elects the Applications with the configured delay and capacity and could slow down or
+ * fail the requests to simulate the loaded cluster.
+ */
+public class FishStandIn implements Closeable {
+
+    private static final String API_PREFIX = "/api/v1";
+
+    private static final Pattern APP_PATH = Pattern.compile("^/application/([0-9a-fA-F-]{36})/(state|resource|deallocate|task)$");
+    private static final Pattern NAME_FILTER = Pattern.compile("^name='(.*)'$");
+    private static final Pattern METADATA_FILTER = Pattern.compile("^metadata LIKE '%(.*)%'$");
+
+    /**
+     * Application with its current status
+     */
+    private static class App {
+        final Application app;
+        final Label label;
+        final long created = System.currentTimeMillis();
+        volatile ApplicationStatus status = ApplicationStatus.NEW;
+
+        App(Application app, Label label) {
+            this.app = app;
+            this.label = label;
+        }
+    }
+
+    private final JSON json = new JSON();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService elector;
+
+    private final Map<String, List<Label>> labels = new ConcurrentHashMap<>();
+    private final Map<UUID, App> apps = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long latency;
+    private volatile long allocationDelay;
+    private volatile double failureRate;
+    private volatile int capacity = -1;
+    private volatile Consumer<Application> onAllocated;
+
+    public FishStandIn() throws IOException {
+        executor = Executors.newCachedThreadPool(new NamedThreadFactory(new DaemonThreadFactory(), "Fish stand-in"));
+        elector = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(new DaemonThreadFactory(), "Fish stand-in election"));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        elector.scheduleWithFixedDelay(this::elect, 50, 50, TimeUnit.MILLISECONDS);
+    }
+
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Adds the label version with one definition
+     */
+    public Label addLabel(String name, int version) {
+        LabelDefinition definition = new LabelDefinition();
+        definition.setDriver("test");
+
+        Label label = new Label();
+        label.setUID(UUID.randomUUID());
+        label.setName(name);
+        label.setVersion(version);
+        label.setDefinitions(Collections.singletonList(definition));
+        labels.computeIfAbsent(name, k -> new CopyOnWriteArrayList<>()).add(label);
+        return label;
+    }
+
+    /**
+     * Delay of each request in ms
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Time in ms the new Application waits for election
+     */
+    public void setAllocationDelay(long allocationDelay) {
+        this.allocationDelay = allocationDelay;
+    }
+
+    /**
+     * Part of the requests answered with 503, from 0.0 to 1.0
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Max amount of the allocated Applications at a time, -1 for unlimited
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Called asynchronously when the Application is allocated, the real resource starts the agent here
+     */
+    public void setOnAllocated(Consumer<Application> onAllocated) {
+        this.onAllocated = onAllocated;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public List<Application> getApplications() {
+        return apps.values().stream()
+                .sorted(Comparator.comparingLong(a -> a.created))
+                .map(a -> a.app).collect(Collectors.toList());
+    }
+
+    public ApplicationStatus getStatus(UUID app_uid) {
+        App app = apps.get(app_uid);
+        return app != null ? app.status : null;
+    }
+
+    public long getCount(ApplicationStatus status) {
+        return apps.values().stream().filter(a -> a.status == status).count();
+    }
+
+    static String getAgentName(Application app) {
+        return JSONObject.fromObject(app.getMetadata()).optString("JENKINS_AGENT_NAME");
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        elector.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void elect() {
+        long now = System.currentTimeMillis();
+        List<App> pending = apps.values().stream()
+                .filter(a -> a.status == ApplicationStatus.NEW && a.created + allocationDelay <= now)
+                .sorted(Comparator.comparingLong(a -> a.created))
+                .collect(Collectors.toList());
+        for( App app : pending ) {
+            if( capacity >= 0 && getCount(ApplicationStatus.ALLOCATED) >= capacity )
+                return;
+            app.status = ApplicationStatus.ALLOCATED;
+            Consumer<Application> callback = onAllocated;
+            if( callback != null ) {
+                executor.execute(() -> callback.accept(app.app));
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            if( latency > 0 ) {
+                Thread.sleep(latency);
+            }
+            if( failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate ) {
+                failures.incrementAndGet();
+                send(exchange, 503, "{\"message\":\"Stand-in failure\"}");
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if( path.startsWith(API_PREFIX) ) {
+                path = path.substring(API_PREFIX.length());
+            }
+            if( path.length() > 1 && path.endsWith("/") ) {
+                path = path.substring(0, path.length() - 1);
+            }
+            String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+
+            Object out = route(exchange.getRequestMethod(), path, getFilter(exchange), body);
+            if( out == null ) {
+                send(exchange, 404, "{\"message\":\"Not found\"}");
+            } else {
+                send(exchange, 200, out instanceof String ? (String) out : json.serialize(out));
+            }
+        } catch( InterruptedException e ) {
+            send(exchange, 503, "{\"message\":\"Stand-in is stopping\"}");
+        } catch( RuntimeException e ) {
+            send(exchange, 400, "{\"message\":\"" + e.getMessage() + "\"}");
+        }
+    }
+
+    private Object route(String method, String path, String filter, String body) {
+        if( method.equals("GET") && path.equals("/user/me") ) {
+            User user = new User();
+            user.setName("stand-in");
+            return user;
+        } else if( method.equals("GET") && path.equals("/node") ) {
+            return "[]";
+        } else if( method.equals("GET") && path.equals("/label") ) {
+            return findLabels(filter);
+        } else if( method.equals("GET") && path.equals("/application") ) {
+            return findApplications(filter);
+        } else if( method.equals("POST") && path.equals("/application") ) {
+            return createApplication(json.deserialize(body, Application.class));
+        }
+
+        Matcher matcher = APP_PATH.matcher(path);
+        if( !matcher.matches() )
+            return null;
+        App app = apps.get(UUID.fromString(matcher.group(1)));
+        if( app == null )
+            return null;
+        switch( method + " " + matcher.group(2) ) {
+            case "GET state":
+                ApplicationState state = new ApplicationState();
+                state.setUID(UUID.randomUUID());
+                state.setApplicationUID(app.app.getUID());
+                state.setStatus(app.status);
+                state.setDescription("Stand-in state");
+                return state;
+            case "GET resource":
+                if( app.status != ApplicationStatus.ALLOCATED )
+                    return null;
+                Resource res = new Resource();
+                res.setUID(UUID.randomUUID());
+                res.setApplicationUID(app.app.getUID());
+                res.setDefinitionIndex(0);
+                return res;
+            case "GET deallocate":
+                app.status = ApplicationStatus.DEALLOCATED;
+                return "{\"message\":\"Application deallocated\"}";
+            case "POST task":
+                ApplicationTask task = json.deserialize(body, ApplicationTask.class);
+                task.setUID(UUID.randomUUID());
+                return task;
+            default:
+                return null;
+        }
+    }
+
+    private List<Label> findLabels(String filter) {
+        if( filter == null ) {
+            return labels.values().stream().flatMap(List::stream).collect(Collectors.toList());
+        }
+        Matcher matcher = NAME_FILTER.matcher(filter);
+        if( !matcher.matches() )
+            throw new IllegalArgumentException("Unsupported label filter: " + filter);
+        return labels.getOrDefault(matcher.group(1).replace("''", "'"), Collections.emptyList());
+    }
+
+    private List<Application> findApplications(String filter) {
+        if( filter == null )
+            return getApplications();
+        Matcher matcher = METADATA_FILTER.matcher(filter);
+        if( !matcher.matches() )
+            throw new IllegalArgumentException("Unsupported application filter: " + filter);
+        String value = matcher.group(1).replace("''", "'");
+        return getApplications().stream()
+                .filter(a -> json.serialize(a.getMetadata()).contains(value))
+                .collect(Collectors.toList());
+    }
+
+    private Application createApplication(Application app) {
+        Label label = labels.values().stream().flatMap(List::stream)
+                .filter(l -> l.getUID().equals(app.getLabelUID()))
+                .findFirst().orElseThrow(() -> new IllegalArgumentException("Unknown label " + app.getLabelUID()));
+        app.setUID(UUID.randomUUID());
+        apps.put(app.getUID(), new App(app, label));
+        return app;
+    }
+
+    private static String getFilter(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if( query == null )
+            return null;
+        for( String param : query.split("&") ) {
+            String[] param_sep = param.split("=", 2);
+            if( param_sep.length == 2 && param_sep[0].equals("filter") )
+                return URLDecoder.decode(param_sep[1], "UTF-8");
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, data.length);
+        try( OutputStream out = exchange.getResponseBody() ) {
+            out.write(data);
+        }
+    }
+}
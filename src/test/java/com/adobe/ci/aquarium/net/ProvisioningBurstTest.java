@@ -0,0 +1,214 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import hudson.ExtensionList;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.NodeProvisioner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queue burst through the whole provisioning path: the provisioning strategy, the cloud and the
+ * launcher against the Fish stand-in. Reports the provisioning throughput, queue-to-start percentiles,
+ * controller threads and the Fish request rate. The default burst is small to run with the other tests,
+ * the scale run is configured by the properties, like:
+ *   mvn test -Dtest=ProvisioningBurstTest -DProvisioningBurstTest.builds=500 -Djenkins.test.timeout=3600
+ */
+public class ProvisioningBurstTest {
+
+    private static final Logger LOG = Logger.getLogger(ProvisioningBurstTest.class.getName());
+
+    private static final int BUILDS = Integer.getInteger(ProvisioningBurstTest.class.getSimpleName() + ".builds", 6);
+    private static final int LABELS = Integer.getInteger(ProvisioningBurstTest.class.getSimpleName() + ".labels", 2);
+    private static final long ALLOCATION_DELAY = Long.getLong(ProvisioningBurstTest.class.getSimpleName() + ".allocationDelay", 500L);
+    private static final long LATENCY = Long.getLong(ProvisioningBurstTest.class.getSimpleName() + ".latency", 10L);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FishStandIn fish;
+
+    @Before
+    public void setUp() throws Exception {
+        fish = new FishStandIn();
+        fish.setAllocationDelay(ALLOCATION_DELAY);
+        fish.setLatency(LATENCY);
+        fish.setOnAllocated(app -> AquariumCloudTest.connectAgent(j, app));
+        for( int i = 0; i < LABELS; i++ ) {
+            fish.addLabel("burst-" + i, 1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        fish.close();
+    }
+
+    /**
+     * Results of one burst
+     */
+    private static class Burst {
+        final String name;
+        // Queue-to-start time of each build in ms, sorted
+        final List<Long> waits = new ArrayList<>();
+        int apps;
+        long requests;
+        long failures;
+        long duration;
+        int threads_before;
+        int threads_peak;
+
+        Burst(String name) {
+            this.name = name;
+        }
+
+        long percentile(int p) {
+            int idx = (int) Math.ceil(p / 100.0 * waits.size()) - 1;
+            return waits.get(Math.max(0, Math.min(waits.size() - 1, idx)));
+        }
+
+        void report() {
+            LOG.info(String.format("Aquarium burst %s: builds=%d labels=%d allocationDelay=%dms latency=%dms",
+                    name, BUILDS, LABELS, ALLOCATION_DELAY, LATENCY));
+            LOG.info(String.format("  throughput: %.1f agents/min (%d Applications in %dms)",
+                    apps * 60000.0 / duration, apps, duration));
+            LOG.info(String.format("  queue-to-start: p50=%dms p90=%dms p99=%dms max=%dms",
+                    percentile(50), percentile(90), percentile(99), waits.get(waits.size() - 1)));
+            LOG.info(String.format("  controller threads: before=%d peak=%d", threads_before, threads_peak));
+            LOG.info(String.format("  fish requests: %d, %.1f req/s, failed=%d",
+                    requests, requests * 1000.0 / duration, failures));
+        }
+    }
+
+    /**
+     * Schedules the builds at once, waits for them to complete and checks the cloud did not over-provision
+     */
+    private Burst burst(String name) throws Exception {
+        Burst out = new Burst(name);
+        List<FreeStyleProject> projects = new ArrayList<>();
+        for( int i = 0; i < BUILDS; i++ ) {
+            FreeStyleProject project = j.createFreeStyleProject(name + "-" + i);
+            project.setAssignedLabel(j.jenkins.getLabel("burst-" + (i % LABELS)));
+            projects.add(project);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        out.threads_before = threads.getThreadCount();
+        AtomicInteger threads_peak = new AtomicInteger(out.threads_before);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            sampler.scheduleAtFixedRate(() -> threads_peak.accumulateAndGet(threads.getThreadCount(), Math::max),
+                    0, 100, TimeUnit.MILLISECONDS);
+
+            int apps_before = fish.getApplications().size();
+            long requests_before = fish.getRequestCount();
+            long failures_before = fish.getFailureCount();
+            long started = System.currentTimeMillis();
+            Map<FreeStyleProject, QueueTaskFuture<FreeStyleBuild>> futures = new LinkedHashMap<>();
+            for( FreeStyleProject project : projects ) {
+                futures.put(project, project.scheduleBuild2(0));
+            }
+
+            long last_start = started;
+            for( QueueTaskFuture<FreeStyleBuild> future : futures.values() ) {
+                FreeStyleBuild build = j.assertBuildStatusSuccess(future);
+                out.waits.add(build.getStartTimeInMillis() - started);
+                last_start = Math.max(last_start, build.getStartTimeInMillis());
+            }
+            out.duration = Math.max(1, last_start - started);
+            out.requests = fish.getRequestCount() - requests_before;
+            out.failures = fish.getFailureCount() - failures_before;
+            out.apps = fish.getApplications().size() - apps_before;
+        } finally {
+            sampler.shutdownNow();
+        }
+        out.threads_peak = threads_peak.get();
+        Collections.sort(out.waits);
+        out.report();
+
+        assertEquals(BUILDS, out.waits.size());
+        // Each build needs one single-use agent, more Applications means the cloud over-provisioned
+        assertTrue("Over-provisioned: " + out.apps + " Applications for " + BUILDS + " builds", out.apps <= BUILDS);
+        return out;
+    }
+
+    @Test
+    public void provisionsBurst() throws Exception {
+        AquariumCloudTest.createCloud(j, fish);
+
+        burst("nodelay");
+    }
+
+    @Test
+    public void coalescesFastProvisioningReviews() throws Exception {
+        AquariumCloudTest.createCloud(j, fish);
+        long reviews_before = reviews();
+
+        burst("coalesce");
+
+        // The items of a label enter the queue together, so the reviews are coalesced into a few per label
+        long reviews = reviews() - reviews_before;
+        LOG.info(String.format("  fast provisioning reviews: %d for %d builds", reviews, BUILDS));
+        assertTrue("No provisioner review was requested", reviews > 0);
+        assertTrue("Reviews are not coalesced: " + reviews + " for " + BUILDS + " builds", reviews < BUILDS);
+    }
+
+    private static long reviews() {
+        long out = 0;
+        for( int i = 0; i < LABELS; i++ ) {
+            out += AquariumMetrics.FAST_PROVISIONING_REVIEWS.get("burst-" + i).sum();
+        }
+        return out;
+    }
+
+    /**
+     * The same burst with NoDelayProvisionerStrategy and with the default NodeProvisioner strategy only,
+     * which waits for the load statistics to grow before provisioning. Takes about a minute.
+     */
+    @Test
+    public void noDelayStartsBuildsBeforeDefaultStrategy() throws Exception {
+        AquariumCloudTest.createCloud(j, fish);
+
+        Burst nodelay = burst("nodelay");
+        // The single-use agents are gone before the next burst
+        AquariumCloudTest.waitFor(() -> j.jenkins.getNodes().stream().noneMatch(n -> n instanceof AquariumSlave), 60000);
+
+        ExtensionList<NodeProvisioner.Strategy> strategies = j.jenkins.getExtensionList(NodeProvisioner.Strategy.class);
+        strategies.remove(strategies.get(NoDelayProvisionerStrategy.class));
+        ExtensionList<QueueListener> listeners = j.jenkins.getExtensionList(QueueListener.class);
+        listeners.remove(listeners.get(NoDelayProvisionerStrategy.FastProvisioning.class));
+        Burst standard = burst("default");
+
+        assertTrue("NoDelay p50 " + nodelay.percentile(50) + "ms is not lower than default p50 "
+                + standard.percentile(50) + "ms", nodelay.percentile(50) < standard.percentile(50));
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2021 Adobe. All rights reserved.
+ * This file is licensed to you under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR REPRESENTATIONS
+ * OF ANY KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.adobe.ci.aquarium.net;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProvisioningLimitsTest {
+
+    private static Map<String, Integer> map(Object... pairs) {
+        Map<String, Integer> out = new HashMap<>();
+        for( int i = 0; i < pairs.length; i += 2 ) {
+            out.put((String) pairs[i], (Integer) pairs[i + 1]);
+        }
+        return out;
+    }
+
+    private static Map<String, Double> weights(Object... pairs) {
+        Map<String, Double> out = new HashMap<>();
+        for( int i = 0; i < pairs.length; i += 2 ) {
+            out.put((String) pairs[i], (Double) pairs[i + 1]);
+        }
+        return out;
+    }
+
+    @Test
+    public void parsesLabelLimitsAndWeights() {
+        ProvisioningLimits limits = new ProvisioningLimits("macos=5:2.5\nlinux = 10\ninvalid=abc\nno-value\n", null);
+
+        assertEquals(5, limits.getLabelMax("macos"));
+        assertEquals(2.5, limits.getLabelWeight("macos"), 0.0);
+        assertEquals(10, limits.getLabelMax("linux"));
+        assertEquals(1.0, limits.getLabelWeight("linux"), 0.0);
+        // Unknown and invalid labels are not limited
+        assertEquals(-1, limits.getLabelMax("windows"));
+        assertEquals(-1, limits.getLabelMax("invalid"));
+        assertFalse(limits.hasFolderLimits());
+    }
+
+    @Test
+    public void ignoresNonPositiveWeight() {
+        ProvisioningLimits limits = new ProvisioningLimits("macos=5:0\nlinux=5:-1", null);
+
+        assertEquals(1.0, limits.getLabelWeight("macos"), 0.0);
+        assertEquals(1.0, limits.getLabelWeight("linux"), 0.0);
+    }
+
+    @Test
+    public void folderLimitIncludesSubfolders() {
+        ProvisioningLimits limits = new ProvisioningLimits(null, "team=3\nteam/project=1");
+        assertTrue(limits.hasFolderLimits());
+
+        Map<String, Integer> usage = map("team", 1, "team/other", 1);
+        assertTrue(limits.isFolderAllowed("team/project", usage));
+        assertTrue(limits.isFolderAllowed("team", usage));
+
+        // The subfolder reached its own limit
+        usage.put("team/project", 1);
+        assertFalse(limits.isFolderAllowed("team/project", usage));
+        // And now the parent is full with the subfolders usage
+        assertFalse(limits.isFolderAllowed("team/other", usage));
+        assertFalse(limits.isFolderAllowed("team", usage));
+    }
+
+    @Test
+    public void folderWithoutLimitIsAllowed() {
+        ProvisioningLimits limits = new ProvisioningLimits(null, "team=1");
+        Map<String, Integer> usage = map("other", 100, "teammate", 5);
+
+        assertTrue(limits.isFolderAllowed("other", usage));
+        // Prefix of the name is not a parent folder
+        assertTrue(limits.isFolderAllowed("team", usage));
+        assertTrue(limits.isFolderAllowed("", usage));
+    }
+
+    @Test
+    public void rootLimitAppliesToAllFolders() {
+        ProvisioningLimits limits = new ProvisioningLimits(null, "=2");
+        Map<String, Integer> usage = map("a", 1);
+
+        assertTrue(limits.isFolderAllowed("b/c", usage));
+        usage.put("b/c", 1);
+        assertFalse(limits.isFolderAllowed("d", usage));
+    }
+
+    @Test
+    public void fairShareGivesAllDemandWhenCapacityIsEnough() {
+        Map<String, Integer> out = ProvisioningLimits.fairShare(10, map("a", 3, "b", 4), weights());
+
+        assertEquals(3, (int) out.get("a"));
+        assertEquals(4, (int) out.get("b"));
+    }
+
+    @Test
+    public void fairShareSplitsByWeight() {
+        Map<String, Integer> out = ProvisioningLimits.fairShare(9, map("a", 100, "b", 100), weights("a", 2.0));
+
+        assertEquals(6, (int) out.get("a"));
+        assertEquals(3, (int) out.get("b"));
+    }
+
+    @Test
+    public void fairShareGivesRoundingLeftoverToHeavierKey() {
+        // 5 * 2/3 = 3.33 and 5 * 1/3 = 1.66, the leftover one goes to the heavier key
+        Map<String, Integer> out = ProvisioningLimits.fairShare(5, map("a", 10, "b", 10), weights("a", 2.0));
+
+        assertEquals(4, (int) out.get("a"));
+        assertEquals(1, (int) out.get("b"));
+    }
+
+    @Test
+    public void fairShareGivesOneByOneWhenSharesAreBelowOne() {
+        // Every share is 2/3 and rounded down to 0 - the given == 0 fallback
+        Map<String, Integer> out = ProvisioningLimits.fairShare(2, map("a", 5, "b", 5, "c", 5), weights());
+
+        assertEquals(1, (int) out.get("a"));
+        assertEquals(1, (int) out.get("b"));
+        assertEquals(0, (int) out.get("c"));
+    }
+
+    @Test
+    public void fairShareFallbackPrefersHeavierKeys() {
+        Map<String, Integer> out = ProvisioningLimits.fairShare(1, map("a", 5, "b", 5, "c", 5), weights("c", 1.5));
+
+        assertEquals(0, (int) out.get("a"));
+        assertEquals(0, (int) out.get("b"));
+        assertEquals(1, (int) out.get("c"));
+    }
+
+    @Test
+    public void fairShareRedistributesUnusedPart() {
+        // The key with small demand is satisfied and the rest of the capacity goes to the other one
+        Map<String, Integer> out = ProvisioningLimits.fairShare(10, map("a", 2, "b", 20), weights());
+
+        assertEquals(2, (int) out.get("a"));
+        assertEquals(8, (int) out.get("b"));
+    }
+
+    @Test
+    public void fairShareSkipsKeysWithoutDemand() {
+        Map<String, Integer> out = ProvisioningLimits.fairShare(4, map("a", 0, "b", -2, "c", 10), weights("a", 10.0));
+
+        assertEquals(0, (int) out.get("a"));
+        assertEquals(0, (int) out.get("b"));
+        assertEquals(4, (int) out.get("c"));
+    }
+
+    @Test
+    public void fairShareWithoutCapacity() {
+        Map<String, Integer> out = ProvisioningLimits.fairShare(0, map("a", 5, "b", 5), weights());
+
+        assertEquals(0, (int) out.get("a"));
+        assertEquals(0, (int) out.get("b"));
+    }
+
+    @Test
+    public void fairShareNeverExceedsCapacityOrDemand() {
+        Map<String, Integer> demands = map("a", 7, "b", 3, "c", 11, "d", 1, "e", 5);
+        Map<String, Double> w = weights("a", 3.0, "b", 0.5, "c", 1.7, "e", 2.2);
+        for( int capacity = 0; capacity <= 30; capacity++ ) {
+            Map<String, Integer> out = ProvisioningLimits.fairShare(capacity, demands, w);
+            int total = 0;
+            for( Map.Entry<String, Integer> entry : out.entrySet() ) {
+                assertTrue(entry.getValue() >= 0);
+                assertTrue(entry.getValue() <= demands.get(entry.getKey()));
+                total += entry.getValue();
+            }
+            // The capacity is used completely until all the demand is satisfied
+            assertEquals(Math.min(capacity, 27), total);
+        }
+    }
+}